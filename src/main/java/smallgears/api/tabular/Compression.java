@@ -0,0 +1,159 @@
+package smallgears.api.tabular;
+
+import static smallgears.api.tabular.utils.Pipes.*;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import lombok.NonNull;
+import smallgears.api.tabular.utils.GzipMembers;
+
+/**
+ * The compression of CSV data.
+ * <p>
+ * Compressed data is decoded ahead of parsing and encoded behind serialisation, on separate threads.
+ *
+ * @see Csv#compression()
+ */
+public enum Compression {
+
+	NONE,
+
+	GZIP,
+
+	/**
+	 * Zlib-wrapped deflate, as produced by {@link DeflaterOutputStream}.
+	 */
+	DEFLATE,
+
+	/**
+	 * Detected from file extensions, and from the magic bytes of gzip data when parsing.
+	 * <p>
+	 * Deflate data has no magic bytes that plain text cannot start with, so it is detected only from file extensions.
+	 */
+	AUTO;
+
+
+	/**
+	 * Returns the compression of a file, from its extension.
+	 */
+	public static Compression of(@NonNull Path file) {
+
+		String name = file.getFileName().toString().toLowerCase();
+
+		if (name.endsWith(".gz") || name.endsWith(".gzip"))
+			return GZIP;
+
+		if (name.endsWith(".zz") || name.endsWith(".deflate"))
+			return DEFLATE;
+
+		return NONE;
+	}
+
+	/**
+	 * Returns the compression of a file, from its magic bytes: {@link #GZIP} or {@link #NONE}.
+	 */
+	public static Compression sniff(@NonNull Path file) throws IOException {
+
+		try (InputStream in = Files.newInputStream(file)) {
+
+			return sniff(in.read(),in.read());
+		}
+	}
+
+	/**
+	 * Resolves this compression for a given file.
+	 */
+	public Compression resolve(@NonNull Path file) throws IOException {
+
+		if (this!=AUTO)
+			return this;
+
+		Compression compression = of(file);
+
+		return compression==NONE && Files.size(file)>=2 ? sniff(file) : compression;
+	}
+
+	/**
+	 * Returns a stream that decodes a given one, ahead of consumption.
+	 */
+	public InputStream decode(@NonNull InputStream stream) throws IOException {
+
+		switch(this) {
+
+			case GZIP:
+				return ahead(new GZIPInputStream(stream,BLOCK_SIZE));
+
+			case DEFLATE:
+				return ahead(new InflaterInputStream(stream));
+
+			case AUTO:
+
+				BufferedInputStream buffered = new BufferedInputStream(stream,BLOCK_SIZE);
+
+				buffered.mark(2);
+
+				Compression compression = sniff(buffered.read(),buffered.read());
+
+				buffered.reset();
+
+				return compression.decode(buffered);
+
+			default:
+				return stream;
+		}
+	}
+
+	/**
+	 * Returns a stream that encodes into a given one, behind production.
+	 * <p>
+	 * Streams are not encoded when compression is {@link #AUTO}, as there is no file to resolve it from.
+	 */
+	public OutputStream encode(@NonNull OutputStream stream) throws IOException {
+
+		return encode(stream,1);
+	}
+
+	/**
+	 * Returns a stream that encodes into a given one, behind production and with up to a given number of threads.
+	 * <p>
+	 * With more than one thread, gzip data is compressed in independent blocks, as a multi-member stream.
+	 *
+	 * @see GzipMembers
+	 */
+	public OutputStream encode(@NonNull OutputStream stream, int threads) throws IOException {
+
+		switch(this) {
+
+			case GZIP:
+				return threads>1 ? new GzipMembers(stream,threads) : behind(new GZIPOutputStream(stream,BLOCK_SIZE));
+
+			case DEFLATE:
+				return behind(new DeflaterOutputStream(stream));
+
+			default:
+				return stream;
+		}
+	}
+
+
+	//////////////////////////////////////////////////////////////////////////////////////////////
+
+
+	private static Compression sniff(int b1, int b2) {
+
+		if (b1==0x1f && b2==0x8b)
+			return GZIP;
+
+		//zlib headers are valid text, e.g. "x^"
+		return NONE;
+	}
+}
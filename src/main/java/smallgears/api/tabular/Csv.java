@@ -1,6 +1,7 @@
 package smallgears.api.tabular;
 
 import static java.lang.Integer.*;
+import static java.nio.file.Files.*;
 import static java.util.Arrays.*;
 import static java.util.stream.Collectors.*;
 import static smallgears.api.tabular.utils.TableUtils.*;
@@ -8,9 +9,9 @@ import static smallgears.api.tabular.utils.TableUtils.*;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -22,8 +23,11 @@ import lombok.NonNull;
 import lombok.SneakyThrows;
 import smallgears.api.tabular.dsl.Dsl.SinkClause;
 import smallgears.api.tabular.dsl.Dsl.SourceClause;
+import smallgears.api.tabular.impl.CsvIndex;
 import smallgears.api.tabular.impl.CsvTable;
-import au.com.bytecode.opencsv.CSVWriter;
+import smallgears.api.tabular.impl.CsvWriter;
+import smallgears.api.tabular.impl.ParallelCsvWriter;
+import smallgears.api.tabular.impl.ParallelCsvTable;
 
 /**
  * Directives to convert between {@link Table}s and CSV streams.
@@ -34,6 +38,12 @@ import au.com.bytecode.opencsv.CSVWriter;
  * 
  * <ul>
  * <li> {@link #rows()} can be used to limit the amount of rows that are parsed or serialised.
+ * <li> {@link #offset()} can be used to skip rows before parsing.
+ * <li> {@link #projection()} and {@link #positions()} can be used to select arbitrary columns when parsing.
+ * <li> {@link #parallelism()} and {@link #ordered()} can be used to parse files on multiple threads.
+ * <li> {@link #mapped()} can be used to parse files in place, through memory mappings.
+ * <li> {@link #readahead()} and {@link #batch()} can be used to parse rows on a separate thread, ahead of their consumption.
+ * <li> {@link #compression()} can be used to parse and serialise compressed data.
  * <li> {@link #columns()} can be used to limit or control the columns that are parsed or serialised, as follows:
  * <ul>
  * 	<li>when parsing, a non-empty {@link #columns()} supersedes any header that may be in the data. 
@@ -81,6 +91,66 @@ public class Csv {
 	 */
 	private int rows = MAX_VALUE;
 	
+	/**
+	 * The number of rows to skip before parsing, e.g. to page through data with {@link #rows()}.
+	 * <p>
+	 * Files with a valid {@link CsvIndex} are parsed from the closest sampled row, rather than from the start.
+	 */
+	private long offset = 0;
+	
+	/**
+	 * The number of threads that may parse a CSV file, or serialise a table.
+	 * <p>
+	 * Files are split in chunks of records that are parsed concurrently. 
+	 * This applies only to files in UTF-8 or single-byte encodings, when the number of {@link #rows()} is unbounded.
+	 * <p>
+	 * Tables are serialised in chunks of {@link #batch()} rows that are encoded concurrently, and written in order.
+	 * This also applies only to UTF-8 and single-byte encodings.
+	 * Gzip data is also compressed in independent blocks, as a multi-member stream that remains readable by any gzip reader.
+	 */
+	private int parallelism = 1;
+	
+	/**
+	 * Whether rows parsed in parallel follow the order of the file.
+	 * <p>
+	 * Unordered rows are available as soon as their chunk is parsed, which is faster when order is irrelevant.
+	 */
+	private boolean ordered = true;
+	
+	/**
+	 * Whether files are mapped in memory rather than streamed.
+	 * <p>
+	 * Mapped files are scanned in place, without copies into intermediate buffers. 
+	 * This applies only to files in UTF-8 or single-byte encodings.
+	 */
+	private boolean mapped = false;
+	
+	/**
+	 * The number of row batches that may be parsed ahead of consumption, on a separate thread.
+	 * <p>
+	 * Parsing then overlaps with processing, and stops when this many batches are waiting. Zero parses rows on demand.
+	 * 
+	 * @see #batch()
+	 */
+	private int readahead = 0;
+	
+	/**
+	 * The number of rows in a batch parsed ahead of consumption, or serialised in parallel.
+	 * 
+	 * @see #readahead()
+	 * @see #parallelism()
+	 */
+	private int batch = 1024;
+	
+	/**
+	 * The compression of the data.
+	 * <p>
+	 * By default, compression is detected from file extensions, and gzip data also from its magic bytes when parsing.
+	 * Compressed data is decoded and encoded on a separate thread, and is always streamed.
+	 */
+	@NonNull
+	private Compression compression = Compression.AUTO;
+	
 	/**
 	 * The columns of the assets (live view).
 	 * <p>
@@ -90,6 +160,23 @@ public class Csv {
 	@NonNull
 	private final List<Column> columns = new ArrayList<>();
 	
+	/**
+	 * The names of the columns to parse (live view).
+	 * <p>
+	 * When this or {@link #positions()} is non-empty, rows include only the selected columns and the values of other columns are never decoded.
+	 * Names are resolved against {@link #columns()}, whether specified or taken from the header.
+	 */
+	@NonNull
+	private final List<String> projection = new ArrayList<>();
+	
+	/**
+	 * The positions of further columns to parse (live view).
+	 * 
+	 * @see #projection()
+	 */
+	@NonNull
+	private final List<Integer> positions = new ArrayList<>();
+	
 	
 	/**
 	 * A convenience to specify columns in fluent fashion.
@@ -121,6 +208,48 @@ public class Csv {
 		return with(cols.stream().map(Column::new).collect(toList()));
 	}
 	
+	/**
+	 * A convenience to specify the {@link #projection()} in fluent fashion.
+	 */
+	public Csv project(@NonNull String ... cols) {
+		projection.addAll(asList(cols));
+		return this;
+	}
+	
+	/**
+	 * A convenience to specify the {@link #positions()} of projected columns in fluent fashion.
+	 */
+	public Csv project(@NonNull int ... positions) {
+		for (int position : positions)
+			this.positions.add(position);
+		return this;
+	}
+	
+	/**
+	 * Returns a copy of these directives.
+	 */
+	public Csv copy() {
+		
+		Csv copy = csv().hasHeader(hasHeader)
+						.delimiter(delimiter)
+						.encoding(encoding)
+						.quote(quote)
+						.rows(rows)
+						.offset(offset)
+						.parallelism(parallelism)
+						.ordered(ordered)
+						.mapped(mapped)
+						.readahead(readahead)
+						.batch(batch)
+						.compression(compression)
+						.with(columns);
+		
+		copy.projection().addAll(projection);
+		copy.positions().addAll(positions);
+		
+		return copy;
+	}
+	
 	/**
 	 * Serialises a table using these directives.
 	 * 
@@ -129,44 +258,27 @@ public class Csv {
 	public SinkClause serialise(Table table) {
 		
 		
-		return stream->{
-		
-			try {
-				
-				Writer writer = new OutputStreamWriter(stream, encoding);
-				
-				@Cleanup
-				CSVWriter csvwriter = new CSVWriter(writer,delimiter,quote);
-				
-				//priority to directives, fallback to table
-				List<Column> columns = columns().isEmpty() ? table.columns() : columns();
-				
-				if (hasHeader) {
-					
-					
-					List<String> colcoll = columns.stream().map(Column::name).collect(toList());
-					
-					csvwriter.writeNext(colcoll.toArray(new String[0]));
-				
-				}
-				
-				
-				
-				table.stream().map(r->columns.stream().map(c->r.get(c)).collect(toList()))
-							   
-							   .map(vals->vals.toArray(new String[0])) //retain only as many as 
-							   .forEachOrdered(csvwriter::writeNext);
+		return new SinkClause() {
+			
+			@Override
+			@SneakyThrows
+			public void to(OutputStream stream) {
+				write(table,compression.encode(stream,parallelism));
+			}
+			
+			@Override
+			@SneakyThrows
+			public void at(Path file) {
 				
+				if (isDirectory(file) || (exists(file) && !isWritable(file)))
+					throw new IllegalArgumentException(file+" is unwritable or a directory.");
 				
-				csvwriter.flush();
+				Compression compression = Csv.this.compression==Compression.AUTO ? Compression.of(file) : Csv.this.compression;
 				
-				if (columns().isEmpty())
-					columns().addAll(columns);
-			
-			}
-			catch(Exception e) {
+				@Cleanup
+				OutputStream stream = newOutputStream(file);
 				
-				throw (RuntimeException) e;
+				write(table,compression.encode(stream,parallelism));
 			}
 		};
 	}
@@ -193,7 +305,71 @@ public class Csv {
 	 */
 	public SourceClause parse() {
 		
-		return stream->new CsvTable(this,stream);
+		return new SourceClause() {
+			
+			@Override
+			@SneakyThrows
+			public Table in(InputStream stream) {
+				return new CsvTable(Csv.this,compression.decode(stream));
+			}
+			
+			@Override
+			@SneakyThrows
+			public Table at(Path file) {
+				
+				if (!isReadable(file) || isDirectory(file))
+					throw new IllegalArgumentException(file+" is unreadable or a directory.");
+				
+				Compression compression = Csv.this.compression.resolve(file);
+				
+				//compressed files can only be streamed
+				if (compression!=Compression.NONE)
+					return new CsvTable(Csv.this,compression.decode(newInputStream(file)));
+				
+				if (ParallelCsvTable.supports(Csv.this))
+					return new ParallelCsvTable(Csv.this,file);
+				
+				return mapped || offset>0 ? new CsvTable(Csv.this,file) : SourceClause.super.at(file);
+			}
+		};
+	}
+	
+	
+	//////////////////////////////////////////////////////////////////////////////////////////////
+	
+	
+	@SneakyThrows
+	private void write(Table table, OutputStream stream) {
+		
+		//priority to directives, fallback to table
+		List<Column> columns = columns().isEmpty() ? table.columns() : columns();
+		
+		if (ParallelCsvWriter.supports(this)) {
+			
+			@Cleanup
+			ParallelCsvWriter writer = new ParallelCsvWriter(this,stream);
+			
+			if (hasHeader)
+				writer.header(columns);
+			
+			writer.rows(table,columns).flush();
+		}
+		else {
+			
+			@Cleanup
+			CsvWriter writer = new CsvWriter(this,stream);
+			
+			if (hasHeader)
+				writer.header(columns);
+			
+			for (Row row : table)
+				writer.row(row,columns);
+			
+			writer.flush();
+		}
+		
+		if (columns().isEmpty())
+			columns().addAll(columns);
 	}
 	
 }
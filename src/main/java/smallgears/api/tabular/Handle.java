@@ -0,0 +1,43 @@
+package smallgears.api.tabular;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+/**
+ * A column resolved against a {@link Schema}, for access to the values of {@link Row}s without lookups.
+ * <p>
+ * Rows bound to the same schema give direct access to the value at the position of the handle.
+ * Other rows, and handles of columns outside the schema, fall back to lookups by name.
+ *
+ * @see Schema#handle(String)
+ */
+@RequiredArgsConstructor(access=AccessLevel.PACKAGE)
+@Getter
+@ToString(exclude="schema")
+public class Handle {
+
+	private final Schema schema;
+
+	private final int slot;
+
+	@NonNull
+	private final String name;
+
+	/**
+	 * Returns <code>true</code> if this handle has a position in its schema.
+	 */
+	public boolean bound() {
+		return slot>=0;
+	}
+
+	//the row's values, if this handle can access them directly
+	SchemaMap values(Row row) {
+
+		SchemaMap map = row.values();
+
+		return map!=null && map.schema==schema && slot>=0 ? map : null;
+	}
+}
@@ -1,7 +1,6 @@
 package smallgears.api.tabular;
 
 import static java.util.Arrays.*;
-import static java.util.stream.Collectors.*;
 import static smallgears.api.tabular.utils.TableUtils.*;
 
 import java.util.Arrays;
@@ -21,7 +20,8 @@ import lombok.ToString;
 
 /**
  * A mutable row in a {@link Table}.
-
+ * <p>
+ * Rows may be bound to the {@link Schema} of their table, which stores their values compactly.
  */
 @RequiredArgsConstructor
 @EqualsAndHashCode
@@ -39,8 +39,7 @@ public class Row implements Streamable<String> {
 	 * Copy constructor
 	 */
 	public Row(Row row) {
-		this();
-		merge(row);
+		this(row.data instanceof SchemaMap ? ((SchemaMap) row.data).copy() : new HashMap<>(row.data));
 	}
 	
 	@Override
@@ -61,7 +60,12 @@ public class Row implements Streamable<String> {
 	 * Returns <code>true</code> if this row contains the given columns.
 	 */
 	public boolean has(Iterable<Column> cols) {
-		return has(streamof(cols).map(Column::name).collect(toList()));
+		
+		for (Column col : cols)
+			if (!data.containsKey(col.name()))
+				return false;
+		
+		return true;
 	}
 	
 	/**
@@ -85,6 +89,18 @@ public class Row implements Streamable<String> {
 		return has(asList(cols));
 	}
 	
+	/**
+	 * Returns <code>true</code> if this row contains the given columns.
+	 */
+	public boolean has(Handle ... cols) {
+		
+		for (Handle col : cols)
+			if (!contains(col))
+				return false;
+		
+		return true;
+	}
+	
 	/**
 	 * Returns the value of a given column in this row, if any.
 	 */
@@ -100,6 +116,31 @@ public class Row implements Streamable<String> {
 		return get(col.name());
 	}
 	
+	/**
+	 * Returns the value of a given column in this row, if any.
+	 */
+	public String get(Handle col) {
+		
+		SchemaMap values = col.values(this);
+		
+		return values==null ? get(col.name()) : values.values[col.slot()];
+	}
+	
+	/**
+	 * Returns the value of a given column in this row, if any. Otherwise return a fallback value.
+	 */
+	public String getOr(Handle col,String fallbackValue) {
+		
+		SchemaMap values = col.values(this);
+		
+		if (values==null)
+			return getOr(col.name(),fallbackValue);
+		
+		String value = values.values[col.slot()];
+		
+		return value==null ? fallbackValue : value;
+	}
+	
 	/**
 	 * Returns the value of a given column in this row, if any. Otherwise return a fallback value.
 	 */
@@ -129,6 +170,21 @@ public class Row implements Streamable<String> {
 		return this;
 	}
 	
+	/**
+	 * Adds a value of a given column to this row.
+	 */
+	public Row set(Handle column, Object value) {
+		
+		SchemaMap values = column.values(this);
+		
+		if (values==null)
+			return set(column.name(),value);
+		
+		values.set(column.slot(), value.toString());
+		
+		return this;
+	}
+	
 	/**
 	 * Adds a value of a given column to this row.
 	 */
@@ -167,7 +223,11 @@ public class Row implements Streamable<String> {
 	 * Removes given columns from this row.
 	 */
 	public Row remove(Iterable<Column> columns) {
-		return remove(streamof(columns).map(Column::name).collect(toList()));
+		
+		for (Column col : columns)
+			data.remove(col.name());
+		
+		return this;
 	}
 	
 	/**
@@ -207,7 +267,32 @@ public class Row implements Streamable<String> {
 	 * Returns a new row with some of the columns in this row.
 	 */
 	public Row extract(Iterable<Column> columns) {
-		return extract(streamof(columns).map(Column::name).collect(toList()));
+		
+		Row row = new Row();
+		
+		for (Column col : columns)
+			if (has(col.name()))
+				row.set(col, get(col));
+		
+		return row;
+	}
+	
+	/**
+	 * Returns a new row with some of the columns in this row.
+	 * <p>
+	 * The row is bound to the same schema as this row, if any.
+	 */
+	public Row extract(Handle ... columns) {
+		
+		Schema schema = schema();
+		
+		Row row = schema==null ? new Row() : schema.row();
+		
+		for (Handle col : columns)
+			if (contains(col))
+				row.set(col, get(col));
+		
+		return row;
 	}
 	
 	/**
@@ -238,4 +323,43 @@ public class Row implements Streamable<String> {
 		return data.size();
 	}
 	
+	/**
+	 * Returns the schema this row is bound to, if any.
+	 */
+	public Schema schema() {
+		
+		SchemaMap values = values();
+		
+		return values==null ? null : values.schema;
+	}
+	
+	
+	//the values of this row, if bound to a schema
+	SchemaMap values() {
+		return data instanceof SchemaMap ? (SchemaMap) data : null;
+	}
+	
+	private boolean contains(Handle col) {
+		
+		SchemaMap values = col.values(this);
+		
+		return values==null ? data.containsKey(col.name()) : values.values[col.slot()]!=null;
+	}
+	
+	
+	//moves values to a map bound to a given schema, unless they are already there
+	Row bind(Schema schema) {
+		
+		if (data instanceof SchemaMap && ((SchemaMap) data).schema==schema)
+			return this;
+		
+		SchemaMap map = new SchemaMap(schema,new String[schema.size()]);
+		
+		map.putAll(data);
+		
+		data=map;
+		
+		return this;
+	}
+	
 }
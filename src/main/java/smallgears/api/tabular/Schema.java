@@ -0,0 +1,113 @@
+package smallgears.api.tabular;
+
+import static java.util.Collections.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import lombok.NonNull;
+
+/**
+ * The positions of named values in the {@link Row}s of a {@link Table}.
+ * <p>
+ * Rows bound to a schema share it and store their values in an array, at the positions of their columns.
+ * Values of columns outside the schema are stored in a map, so that rows remain semi-structured.
+ * <p>
+ * A schema does not change after creation, and can be shared across threads.
+ */
+public class Schema {
+
+	private final Map<String,Integer> slots = new HashMap<>();
+	private final List<String> names = new ArrayList<>();
+
+	/**
+	 * Creates an instance for given columns.
+	 * <p>
+	 * Only the first of homonymous columns takes a position.
+	 */
+	public Schema(@NonNull Iterable<Column> columns) {
+
+		for (Column col : columns)
+			if (!slots.containsKey(col.name())) {
+				slots.put(col.name(),names.size());
+				names.add(col.name());
+			}
+	}
+
+	/**
+	 * Returns the number of positions in this schema.
+	 */
+	public int size() {
+		return names.size();
+	}
+
+	/**
+	 * Returns the position of a given column in this schema, or <code>-1</code> if the schema does not include it.
+	 */
+	public int slot(Object name) {
+
+		Integer slot = slots.get(name);
+
+		return slot==null ? -1 : slot;
+	}
+
+	/**
+	 * Returns a handle for a given column.
+	 * <p>
+	 * The handle has no position if the schema does not include the column.
+	 */
+	public Handle handle(@NonNull String name) {
+		return new Handle(this,slot(name),name);
+	}
+	
+	/**
+	 * Returns a handle for a given column.
+	 * 
+	 * @see #handle(String)
+	 */
+	public Handle handle(@NonNull Column column) {
+		return handle(column.name());
+	}
+
+	/**
+	 * Returns the names of the columns in this schema, in position order.
+	 */
+	public List<String> names() {
+		return unmodifiableList(names);
+	}
+
+	/**
+	 * Returns a new, empty row bound to this schema.
+	 */
+	public Row row() {
+		return new Row(new SchemaMap(this,new String[size()]));
+	}
+
+	/**
+	 * Returns a new row bound to this schema, with given values in position order.
+	 * <p>
+	 * The row takes ownership of the array, and <code>null</code> elements stand for missing values.
+	 */
+	public Row row(@NonNull String ... values) {
+
+		if (values.length!=size())
+			throw new IllegalArgumentException("expected "+size()+" values, found "+values.length);
+
+		return new Row(new SchemaMap(this,values));
+	}
+
+	/**
+	 * Binds a row to this schema, in place.
+	 */
+	public Row adopt(@NonNull Row row) {
+
+		return row.bind(this);
+	}
+
+	@Override
+	public String toString() {
+		return "Schema "+names;
+	}
+}
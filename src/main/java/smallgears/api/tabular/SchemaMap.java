@@ -0,0 +1,219 @@
+package smallgears.api.tabular;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The values of a {@link Row} bound to a {@link Schema}.
+ * <p>
+ * Values are stored in an array at the positions of their columns, and values of other columns in an overflow map.
+ * Missing values are <code>null</code> in the array, so <code>null</code> values are not retained.
+ */
+class SchemaMap extends AbstractMap<String,String> {
+
+	final Schema schema;
+	final String[] values;
+
+	//created on first value outside schema
+	private Map<String,String> overflow;
+
+	//non-null values in array
+	private int count;
+
+	SchemaMap(Schema schema, String[] values) {
+
+		this.schema=schema;
+		this.values=values;
+
+		for (String value : values)
+			if (value!=null)
+				count++;
+	}
+
+	/**
+	 * Returns a copy of this map.
+	 */
+	SchemaMap copy() {
+
+		SchemaMap copy = new SchemaMap(schema,values.clone());
+
+		if (overflow!=null)
+			copy.overflow = new HashMap<>(overflow);
+
+		return copy;
+	}
+
+	@Override
+	public int size() {
+		return count + (overflow==null ? 0 : overflow.size());
+	}
+
+	@Override
+	public String get(Object key) {
+
+		int slot = schema.slot(key);
+
+		if (slot>=0)
+			return values[slot];
+
+		return overflow==null ? null : overflow.get(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+
+		int slot = schema.slot(key);
+
+		if (slot>=0)
+			return values[slot]!=null;
+
+		return overflow!=null && overflow.containsKey(key);
+	}
+
+	@Override
+	public String put(String key, String value) {
+
+		int slot = schema.slot(key);
+
+		if (slot<0) {
+
+			if (overflow==null)
+				overflow = new HashMap<>();
+
+			return overflow.put(key,value);
+		}
+
+		String previous = values[slot];
+
+		values[slot]=value;
+
+		count += (value==null ? 0 : 1) - (previous==null ? 0 : 1);
+
+		return previous;
+	}
+
+	@Override
+	public String remove(Object key) {
+
+		int slot = schema.slot(key);
+
+		if (slot<0)
+			return overflow==null ? null : overflow.remove(key);
+
+		String previous = values[slot];
+
+		if (previous!=null) {
+			values[slot]=null;
+			count--;
+		}
+
+		return previous;
+	}
+
+	@Override
+	public void putAll(Map<? extends String, ? extends String> map) {
+
+		if (!(map instanceof SchemaMap) || ((SchemaMap) map).schema!=schema) {
+			super.putAll(map);
+			return;
+		}
+
+		SchemaMap other = (SchemaMap) map;
+
+		for (int i=0; i<values.length; i++)
+			if (other.values[i]!=null)
+				set(i,other.values[i]);
+
+		if (other.overflow!=null)
+			other.overflow.forEach(this::put);
+	}
+
+	@Override
+	public void clear() {
+
+		for (int i=0; i<values.length; i++)
+			values[i]=null;
+
+		count=0;
+		overflow=null;
+	}
+
+	@Override
+	public Set<Entry<String,String>> entrySet() {
+
+		return new AbstractSet<Entry<String,String>>() {
+
+			@Override
+			public Iterator<Entry<String,String>> iterator() {
+				return new Entries();
+			}
+
+			@Override
+			public int size() {
+				return SchemaMap.this.size();
+			}
+		};
+	}
+
+	/**
+	 * Sets a non-null value at a given position.
+	 */
+	void set(int slot, String value) {
+
+		if (values[slot]==null)
+			count++;
+
+		values[slot]=value;
+	}
+
+	//////////////////////////////////////////////////////////////////////////////////////////
+
+
+	//array values first, overflow values next
+	private class Entries implements Iterator<Entry<String,String>> {
+
+		private int slot = advance(0);
+		private Iterator<Entry<String,String>> others;
+
+		@Override
+		public boolean hasNext() {
+
+			if (slot<values.length)
+				return true;
+
+			if (others==null)
+				others = overflow==null ? null : overflow.entrySet().iterator();
+
+			return others!=null && others.hasNext();
+		}
+
+		@Override
+		public Entry<String,String> next() {
+
+			if (!hasNext())
+				throw new NoSuchElementException();
+
+			if (others!=null)
+				return others.next();
+
+			Entry<String,String> entry = new SimpleImmutableEntry<>(schema.names().get(slot),values[slot]);
+
+			slot = advance(slot+1);
+
+			return entry;
+		}
+
+		private int advance(int from) {
+
+			while (from<values.length && values[from]==null)
+				from++;
+
+			return from;
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package smallgears.api.tabular;
 
 import static java.lang.String.*;
+import static java.util.Collections.*;
 import static smallgears.api.tabular.dsl.Tables.*;
 
 import java.io.PrintStream;
@@ -9,12 +10,14 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import lombok.NonNull;
 import smallgears.api.tabular.impl.SimpleTable;
+import smallgears.api.tabular.impl.Pipeline;
 import smallgears.api.tabular.impl.StreamedTable;
 import smallgears.api.tabular.utils.MaterialisedTable;
 import smallgears.api.tabular.utils.Streamable;
@@ -47,14 +50,54 @@ public interface Table extends Streamable<Row> {
 	/**
 	 * Returns an equivalent table which can be iterated over multiple times.
 	 * <p>
-	 * It may return this very table if it is already materialised.
+	 * It may return this very table if it is already a {@link SimpleTable}. Other forms are available through {@link #materialise(Function)}.
 	 */
 	SimpleTable materialise();
 	
+	/**
+	 * Returns an equivalent table in a given materialised form, e.g. <code>materialise(ColumnarTable::new)</code>.
+	 * <p>
+	 * Unlike {@link #materialise()}, it materialises this table even if it is already materialised.
+	 */
+	default MaterialisedTable materialise(@NonNull Function<? super Table, ? extends MaterialisedTable> form) {
+		
+		return form.apply(this);
+	}
+	
 	/**
 	 * Returns <code>true</code> if this table is materialised.
 	 */
 	boolean materialised();
+	
+	/**
+	 * Returns <code>true</code> if this table can be iterated over multiple times.
+	 * <p>
+	 * Materialised tables can, and so can tables that obtain their rows anew on each iteration.
+	 */
+	default boolean replayable() {
+		return materialised();
+	}
+	
+	/**
+	 * Returns the schema of the rows of this table, if they are bound to one.
+	 * <p>
+	 * The schema may become known only as rows are added or parsed.
+	 */
+	default Schema schema() {
+		return null;
+	}
+	
+	/**
+	 * Returns a handle for a given column of this table.
+	 * <p>
+	 * The handle accesses row values directly if the table has a schema and it includes the column.
+	 */
+	default Handle handle(@NonNull String name) {
+		
+		Schema schema = schema();
+		
+		return schema==null ? new Schema(emptyList()).handle(name) : schema.handle(name);
+	}
 		
 	
 	/**
@@ -81,6 +124,48 @@ public interface Table extends Streamable<Row> {
 		});
 	}
 	
+	/**
+	 * Returns a streamed table of the rows of this table, transformed by a given function.
+	 * <p>
+	 * Unlike {@link #with(UnaryOperator)}, this and the other pipeline steps apply to rows in a single pass.
+	 * 
+	 * @see Pipeline
+	 */
+	default Pipeline map(@NonNull UnaryOperator<Row> transform) {
+		
+		return new Pipeline(this).map(transform);
+	}
+	
+	/**
+	 * Returns a streamed table of the rows of this table that satisfy a given predicate.
+	 * 
+	 * @see Pipeline
+	 */
+	default Pipeline filter(@NonNull Predicate<? super Row> filter) {
+		
+		return new Pipeline(this).filter(filter);
+	}
+	
+	/**
+	 * Returns a streamed table of the rows of this table, restricted to given columns.
+	 * 
+	 * @see Pipeline
+	 */
+	default Pipeline project(@NonNull String ... columns) {
+		
+		return new Pipeline(this).project(columns);
+	}
+	
+	/**
+	 * Returns a streamed table of the first rows of this table, up to a given number.
+	 * 
+	 * @see Pipeline
+	 */
+	default Pipeline limit(long rows) {
+		
+		return new Pipeline(this).limit(rows);
+	}
+	
 	/**
 	 * Returns a materialised table obtained expanding the rows of this table with a given transform. 
 	 * <p>
@@ -15,6 +15,7 @@ import smallgears.api.tabular.Csv;
 import smallgears.api.tabular.Row;
 import smallgears.api.tabular.Table;
 import smallgears.api.tabular.impl.CsvTable;
+import smallgears.api.tabular.impl.ReplayableTable;
 import lombok.Cleanup;
 import lombok.SneakyThrows;
 
@@ -175,6 +176,14 @@ public class Dsl {
 			
 		}
 		
+		/**
+		 * Provides a CSV data file, to be parsed anew each time the table is iterated over.
+		 */
+		default Table replay(Path file) {
+			
+			return new ReplayableTable(()->at(file));
+		}
+		
 		
 	}
 	
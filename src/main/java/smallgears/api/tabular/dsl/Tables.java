@@ -24,13 +24,13 @@ import smallgears.api.properties.Property;
 import smallgears.api.tabular.Column;
 import smallgears.api.tabular.Csv;
 import smallgears.api.tabular.Row;
+import smallgears.api.tabular.Schema;
 import smallgears.api.tabular.Table;
 import smallgears.api.tabular.dsl.Dsl.NameClause;
 import smallgears.api.tabular.dsl.Dsl.RowClause;
 import smallgears.api.tabular.dsl.Dsl.SourceClause;
 import smallgears.api.tabular.dsl.Dsl.TableClause;
 import smallgears.api.tabular.dsl.Dsl.ValueClause;
-import smallgears.api.tabular.impl.CsvTable;
 import smallgears.api.tabular.impl.SimpleTable;
 import smallgears.api.tabular.impl.StreamedTable;
 
@@ -175,7 +175,7 @@ public class Tables {
 			@Override
 			public SourceClause from(Csv csv) {
 				
-				return stream -> new CsvTable(csv,stream);
+				return csv.parse();
 				
 			}
 			
@@ -220,7 +220,9 @@ public class Tables {
 			@Override
 			public Table rows(String[]... rows) {
 				
-				List<Row> rowlist = asList(rows).stream().map($->list2row(cols,asList($))).collect(toList());
+				Schema schema = new Schema(cols);
+				
+				List<Row> rowlist = asList(rows).stream().map($->list2row(schema,cols,asList($))).collect(toList());
 				
 				return rows(rowlist);
 			}
@@ -235,6 +237,8 @@ public class Tables {
 				
 				List<Row> rows = new ArrayList<Row>();
 				
+				Schema schema = new Schema(cols);
+				
 				class $RowClause implements RowClause {
 					
 					@Override
@@ -246,7 +250,7 @@ public class Tables {
 					@Override
 					public RowClause row(Iterable<String> vals) {
 
-						rows.add(list2row(cols,vals));
+						rows.add(list2row(schema,cols,vals));
 						
 						return new $RowClause();
 					}
@@ -268,17 +272,23 @@ public class Tables {
 		
 	
 	
-	private Row list2row(List<Column> cols, Iterable<String> vals) {
+	//null values stand for missing ones
+	private Row list2row(Schema schema, List<Column> cols, Iterable<String> vals) {
 		
-		NameClause row = Tables.row();
+		Row row = schema.row();
 		
 		Iterator<String> it = vals.iterator();
 	
 		for (Column col : cols)
-			if (it.hasNext())
-				row.col(col).is(it.next());
+			if (it.hasNext()) {
+				
+				String val = it.next();
+				
+				if (val!=null)
+					row.set(col,val);
+			}
 		
-		return row.end();
+		return row;
 	}
 
 	
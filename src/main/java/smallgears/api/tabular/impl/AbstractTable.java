@@ -10,6 +10,7 @@ import smallgears.api.properties.Properties;
 import smallgears.api.tabular.Column;
 import smallgears.api.tabular.Row;
 import smallgears.api.tabular.Table;
+import smallgears.api.tabular.utils.MaterialisedTable;
 import smallgears.api.tabular.utils.Streamable;
 
 
@@ -27,13 +28,13 @@ public abstract class AbstractTable implements Table, Streamable<Row> {
 	
 	public final SimpleTable materialise() {
 		
-		return materialised() ? (SimpleTable) this :new SimpleTable(this);
+		return this instanceof SimpleTable ? (SimpleTable) this :new SimpleTable(this);
 	}
 	
 	@Override
 	public final boolean materialised() {
 		
-		return this instanceof SimpleTable;
+		return this instanceof MaterialisedTable;
 	}
 	
 	@Override
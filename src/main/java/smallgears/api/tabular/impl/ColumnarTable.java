@@ -0,0 +1,406 @@
+package smallgears.api.tabular.impl;
+
+import static java.util.Arrays.*;
+import static java.util.stream.Collectors.*;
+import static smallgears.api.tabular.utils.TableUtils.*;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+import lombok.NonNull;
+import smallgears.api.tabular.Column;
+import smallgears.api.tabular.Row;
+import smallgears.api.tabular.Table;
+import smallgears.api.tabular.operations.Indexes;
+import smallgears.api.tabular.utils.MaterialisedTable;
+
+/**
+ * A {@link Table} that materialises its elements by column, and can be iterated over multiple times.
+ * <p>
+ * The values of each column are stored contiguously, in a vector indexed by row position.
+ * Vectors of low-cardinality columns are dictionary-encoded: they store int codes into a dictionary of the distinct values.
+ * Other vectors switch to plain storage as soon as the dictionary stops paying off.
+ * <p>
+ * Rows are produced on iteration, as views over the vectors: changes to their values are changes to the table.
+ * Removing rows shifts the positions of the following ones, and invalidates the views produced before the removal.
+ *
+ * @see Table#materialise(java.util.function.Function)
+ */
+public class ColumnarTable extends AbstractTable implements MaterialisedTable {
+
+	//dictionaries pay off when they hold less than half the values
+	static final int MIN_SAMPLE = 1 << 10;
+
+	static final int INITIAL_CAPACITY = 16;
+
+	//all columns in rows, including those that are not in table columns
+	private final Map<String,Vector> vectors = new LinkedHashMap<>();
+
+	private final Indexes indexes = new Indexes(this);
+
+	private int size;
+	private int capacity = INITIAL_CAPACITY;
+
+
+	public ColumnarTable(List<Column> columns, @NonNull Iterable<Row> rows) {
+
+		super(columns);
+
+		for (Column col : columns)
+			vector(col.name());
+
+		add(rows);
+	}
+
+	/**
+	 * Materialises a given table.
+	 */
+	public ColumnarTable(Table table) {
+
+		this(table.columns(),table);
+	}
+
+
+	@Override
+	public Iterator<Row> iterator() {
+
+		return new Iterator<Row>() {
+
+			int position = 0;
+
+			@Override
+			public boolean hasNext() {
+				return position<size;
+			}
+
+			@Override
+			public Row next() {
+
+				if (!hasNext())
+					throw new NoSuchElementException();
+
+				return new Row(new View(position++));
+			}
+		};
+	}
+
+	@Override
+	public Spliterator<Row> spliterator() {
+
+		return range(size, i -> new Row(new View(i)));
+	}
+
+	@Override
+	public MaterialisedTable add(Row ... rows) {
+
+		return add(asList(rows));
+	}
+
+	@Override
+	public MaterialisedTable add(Iterable<Row> rows) {
+
+		int from = size;
+
+		for (Row row : rows) {
+
+			if (size==capacity)
+				grow();
+
+			int position = size++;
+
+			row.forEach((col,val) -> vector(col).set(position,val));
+		}
+
+		if (indexes.active())
+			indexes.added(IntStream.range(from,size).mapToObj(i->new Row(new View(i))).collect(toList()));
+
+		return this;
+	}
+
+	@Override
+	public MaterialisedTable remove(Row... rows) {
+
+		return remove(asList(rows));
+	}
+
+	/**
+	 * Removes rows from this table, in a single pass.
+	 * <p>
+	 * As for lists, each row removes the first equal row that has not been removed already.
+	 */
+	@Override
+	public MaterialisedTable remove(Iterable<Row> rows) {
+
+		return removeIf(occurrences(rows));
+	}
+
+	@Override
+	public MaterialisedTable removeIf(@NonNull Predicate<? super Row> filter) {
+
+		BitSet removed = new BitSet(size);
+
+		for (int i=0; i<size; i++)
+			if (filter.test(new Row(new View(i))))
+				removed.set(i);
+
+		compact(removed);
+
+		//positions have shifted
+		if (!removed.isEmpty())
+			indexes.invalidate();
+
+		return this;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the indexes of this table, which follow rows as they are added, and become stale when rows are removed.
+	 */
+	@Override
+	public Indexes indexes() {
+		return indexes;
+	}
+
+	/**
+	 * Returns <code>true</code> if the values of a given column are dictionary-encoded.
+	 */
+	public boolean encoded(@NonNull String column) {
+
+		Vector vector = vectors.get(column);
+
+		return vector!=null && vector.codes!=null;
+	}
+
+
+	@Override
+	public boolean equals(Object other) {
+
+		return other instanceof ColumnarTable && super.equals(other) && rows().equals(((ColumnarTable) other).rows());
+	}
+
+	@Override
+	public int hashCode() {
+
+		return 31*super.hashCode()+rows().hashCode();
+	}
+
+
+	//////////////////////////////////////////////////////////////////////////////////////////////
+
+
+	private List<Row> rows() {
+
+		return stream().collect(toList());
+	}
+
+	private Vector vector(String name) {
+
+		return vectors.computeIfAbsent(name, $ -> new Vector(name,capacity));
+	}
+
+	private void grow() {
+
+		capacity*=2;
+
+		vectors.values().forEach(v->v.resize(capacity));
+	}
+
+	//removes the values at given positions, shifting the others
+	private void compact(BitSet removed) {
+
+		if (removed.isEmpty())
+			return;
+
+		int target = removed.nextSetBit(0);
+
+		for (int source = target; source<size; source++)
+			if (!removed.get(source)) {
+
+				for (Vector vector : vectors.values())
+					vector.move(source,target);
+
+				target++;
+			}
+
+		for (Vector vector : vectors.values())
+			for (int i=target; i<size; i++)
+				vector.set(i,null);
+
+		size=target;
+	}
+
+
+	//the values of a column, by row position
+	private class Vector {
+
+		final String name;
+
+		//plain values, unless encoded
+		String[] values;
+
+		//codes into dictionary, 0 for missing values
+		int[] codes;
+
+		List<String> dictionary = new ArrayList<>();
+		Map<String,Integer> lookup = new HashMap<>();
+
+		//non-missing values
+		int count;
+
+		Vector(String name, int capacity) {
+
+			this.name=name;
+			this.codes=new int[capacity];
+		}
+
+		String get(int position) {
+
+			if (codes==null)
+				return values[position];
+
+			int code = codes[position];
+
+			return code==0 ? null : dictionary.get(code-1);
+		}
+
+		String set(int position, String value) {
+
+			String previous = get(position);
+
+			count += (value==null?0:1) - (previous==null?0:1);
+
+			int code = codes==null || value==null ? 0 : encode(value);
+
+			//encoding may have switched to plain storage
+			if (codes==null)
+				values[position]=value;
+			else
+				codes[position]=code;
+
+			return previous;
+		}
+
+		void move(int from, int to) {
+
+			if (codes==null)
+				values[to]=values[from];
+			else
+				codes[to]=codes[from];
+		}
+
+		void resize(int capacity) {
+
+			if (codes==null)
+				values = copyOf(values,capacity);
+			else
+				codes = copyOf(codes,capacity);
+		}
+
+		private int encode(String value) {
+
+			Integer code = lookup.get(value);
+
+			if (code==null) {
+
+				dictionary.add(value);
+
+				code = dictionary.size();
+
+				lookup.put(value,code);
+
+				if (count>=MIN_SAMPLE && dictionary.size()*2>count)
+					decode();
+			}
+
+			return code;
+		}
+
+		//switches to plain storage
+		private void decode() {
+
+			values = new String[codes.length];
+
+			for (int i=0; i<size; i++)
+				values[i] = codes[i]==0 ? null : dictionary.get(codes[i]-1);
+
+			codes=null;
+			dictionary=null;
+			lookup=null;
+		}
+	}
+
+
+	//the values of a row, straight from vectors
+	private class View extends AbstractMap<String,String> {
+
+		final int position;
+
+		View(int position) {
+			this.position=position;
+		}
+
+		@Override
+		public String get(Object key) {
+
+			Vector vector = vectors.get(key);
+
+			return vector==null ? null : vector.get(position);
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return get(key)!=null;
+		}
+
+		@Override
+		public String put(String key, String value) {
+			return vector(key).set(position,value);
+		}
+
+		@Override
+		public String remove(Object key) {
+
+			Vector vector = vectors.get(key);
+
+			return vector==null ? null : vector.set(position,null);
+		}
+
+		@Override
+		public Set<Entry<String,String>> entrySet() {
+
+			return new AbstractSet<Entry<String,String>>() {
+
+				@Override
+				public Iterator<Entry<String,String>> iterator() {
+
+					return vectors.values().stream()
+										   .filter(v->v.get(position)!=null)
+										   .<Entry<String,String>>map(v->new SimpleImmutableEntry<>(v.name,v.get(position)))
+										   .collect(toList())
+										   .iterator();
+				}
+
+				@Override
+				public int size() {
+					return (int) vectors.values().stream().filter(v->v.get(position)!=null).count();
+				}
+			};
+		}
+	}
+}
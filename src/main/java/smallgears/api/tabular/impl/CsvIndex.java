@@ -0,0 +1,221 @@
+package smallgears.api.tabular.impl;
+
+import static java.nio.file.Files.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Optional;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import smallgears.api.tabular.Csv;
+
+/**
+ * The offsets of a sample of the records in a CSV file, so that parsing can start at any row without scanning the rows before it.
+ * <p>
+ * The index samples every n-th data row, and persists in a sidecar file next to the data file.
+ * It remains valid as long as the size and modification time of the data file do not change, and for directives that agree on header and quotes.
+ * <p>
+ * Only files in UTF-8 or single-byte encodings can be indexed.
+ *
+ * @see Csv#offset()
+ */
+@Slf4j
+@Getter
+@RequiredArgsConstructor(access=AccessLevel.PRIVATE)
+public class CsvIndex {
+
+	static final int MAGIC = 0x43535649;
+	static final int VERSION = 1;
+
+	static final String SUFFIX = ".idx";
+
+	//of the data file
+	private final long size;
+	private final long modified;
+
+	//of the directives
+	private final boolean hasHeader;
+	private final char quote;
+
+	/**
+	 * The sampling interval, in rows.
+	 */
+	private final int every;
+
+	/**
+	 * The number of data rows in the file.
+	 */
+	private final long rows;
+
+	@Getter(AccessLevel.NONE)
+	private final long[] offsets;
+
+
+	/**
+	 * Returns the index of a file, loading it from its sidecar if valid, or else building it and saving it there.
+	 */
+	public static CsvIndex of(@NonNull Csv csv, @NonNull Path file, int every) {
+
+		return load(csv,file).filter(i->i.every==every).orElseGet(() -> build(csv,file,every).save(file));
+	}
+
+	/**
+	 * Builds the index of a file, sampling every given number of rows.
+	 *
+	 * @throws IllegalArgumentException if the file is unreadable or its encoding is not UTF-8 or single-byte
+	 */
+	@SneakyThrows
+	public static CsvIndex build(@NonNull Csv csv, @NonNull Path file, int every) {
+
+		if (every<1)
+			throw new IllegalArgumentException("invalid sampling interval "+every);
+
+		if (!CsvTokenizer.bytewise(Charset.forName(csv.encoding())))
+			throw new IllegalArgumentException("cannot index csv in "+csv.encoding());
+
+		if (!isReadable(file) || isDirectory(file))
+			throw new IllegalArgumentException(file+" is unreadable or a directory.");
+
+		long size = Files.size(file);
+		long modified = getLastModifiedTime(file).toMillis();
+
+		long[] offsets = new long[16];
+
+		long rows = 0;
+
+		try (CsvTokenizer tokenizer = new MappedCsvTokenizer(csv,file)) {
+
+			if (csv.hasHeader())
+				tokenizer.next();
+
+			while (tokenizer.next()) {
+
+				if (rows % every == 0) {
+
+					int sample = (int) (rows/every);
+
+					if (sample==offsets.length)
+						offsets = Arrays.copyOf(offsets,2*offsets.length);
+
+					offsets[sample]=tokenizer.position();
+				}
+
+				rows++;
+			}
+		}
+
+		return new CsvIndex(size,modified,csv.hasHeader(),csv.quote(),every,rows,Arrays.copyOf(offsets,(int) ((rows+every-1)/every)));
+	}
+
+	/**
+	 * Loads the index of a file from its sidecar, if it exists and is still valid for the file and given directives.
+	 */
+	public static Optional<CsvIndex> load(@NonNull Csv csv, @NonNull Path file) {
+
+		Path sidecar = sidecar(file);
+
+		if (!isReadable(sidecar))
+			return Optional.empty();
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(newInputStream(sidecar)))) {
+
+			if (in.readInt()!=MAGIC || in.readInt()!=VERSION)
+				return Optional.empty();
+
+			long size = in.readLong();
+			long modified = in.readLong();
+			boolean hasHeader = in.readBoolean();
+			char quote = in.readChar();
+			int every = in.readInt();
+			long rows = in.readLong();
+
+			long[] offsets = new long[in.readInt()];
+
+			for (int i=0; i<offsets.length; i++)
+				offsets[i]=in.readLong();
+
+			CsvIndex index = new CsvIndex(size,modified,hasHeader,quote,every,rows,offsets);
+
+			return index.valid(csv,file) ? Optional.of(index) : Optional.empty();
+		}
+		catch(IOException e) {
+
+			log.warn("ignoring unreadable index "+sidecar,e);
+
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * Returns the sidecar of a file.
+	 */
+	public static Path sidecar(@NonNull Path file) {
+
+		return file.resolveSibling(file.getFileName()+SUFFIX);
+	}
+
+	/**
+	 * Saves this index in the sidecar of a given file.
+	 */
+	@SneakyThrows
+	public CsvIndex save(@NonNull Path file) {
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(newOutputStream(sidecar(file))))) {
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(size);
+			out.writeLong(modified);
+			out.writeBoolean(hasHeader);
+			out.writeChar(quote);
+			out.writeInt(every);
+			out.writeLong(rows);
+			out.writeInt(offsets.length);
+
+			for (long offset : offsets)
+				out.writeLong(offset);
+		}
+
+		return this;
+	}
+
+	/**
+	 * Returns <code>true</code> if this index is valid for a given file and directives.
+	 */
+	@SneakyThrows
+	public boolean valid(@NonNull Csv csv, @NonNull Path file) {
+
+		return isReadable(file)
+				&& Files.size(file)==size
+				&& getLastModifiedTime(file).toMillis()==modified
+				&& csv.hasHeader()==hasHeader
+				&& csv.quote()==quote
+				&& CsvTokenizer.bytewise(Charset.forName(csv.encoding()));
+	}
+
+	/**
+	 * Returns the number of sampled rows.
+	 */
+	public int samples() {
+		return offsets.length;
+	}
+
+	/**
+	 * Returns the offset of the i-th sampled row, i.e. of the data row at <code>i*every</code>.
+	 */
+	public long sample(int i) {
+		return offsets[i];
+	}
+}
@@ -1,34 +1,53 @@
 package smallgears.api.tabular.impl;
 
+import static java.nio.file.Files.*;
+import static java.util.stream.Collectors.*;
 import static smallgears.api.tabular.dsl.Tables.*;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.HashMap;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.stream.IntStream;
 
+import smallgears.api.tabular.Column;
 import smallgears.api.tabular.Csv;
 import smallgears.api.tabular.Row;
+import smallgears.api.tabular.Schema;
 import smallgears.api.tabular.Table;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
-import au.com.bytecode.opencsv.CSVReader;
 
 /**
- * A {@link Table} backed up by an {@link InputStream} of CSV data.
- * 
+ * A {@link Table} backed up by an {@link InputStream} or a file of CSV data.
+ * <p>
+ * Files are mapped in memory rather than streamed, unless their encoding requires transcoding.
+ * <p>
+ * With {@link Csv#readahead()}, rows are parsed on a separate thread. Closing the table stops parsing early, in all cases.
  */
 @Slf4j
-public class CsvTable extends AbstractTable {
+public class CsvTable extends AbstractTable implements AutoCloseable {
 
 
 	private final Csv csv;
 
+	//shared with other tables, if known in advance
+	private final Schema schema;
+	
+	//if parsed from a file, to seek rows
+	private final Path file;
+
 	private final RowIterator iterator;
 	
+	//on first iteration, if required
+	private ReadAhead<Row> readahead;
+	
 
 	/**
 	 * Creates an instance from  a given {@link Csv} dataset and its {@link InputStream}.
@@ -37,18 +56,90 @@ public class CsvTable extends AbstractTable {
 	 */
 	public CsvTable(Csv csv, InputStream stream) {
 		
-		super(csv.columns());
+		this(csv,()->new CsvTokenizer(csv,stream));
+	}
+	
+	/**
+	 * Creates an instance from  a given {@link Csv} dataset and its file.
+	 * 
+	 * @throws IllegalArgumentException if the file is unreadable or the asset is inconsistently described
+	 */
+	public CsvTable(Csv csv, Path file) {
+		
+		this(csv,()->tokenizer(csv,file),null,file);
+	}
+	
+	/**
+	 * Creates an instance from  a given {@link Csv} dataset and a tokenizer of its data.
+	 * 
+	 * @throws IllegalArgumentException if the asset is inconsistently described
+	 */
+	CsvTable(Csv csv, Callable<CsvTokenizer> tokenizer) {
+		
+		this(csv,tokenizer,null);
+	}
+	
+	/**
+	 * Creates an instance from  a given {@link Csv} dataset, a tokenizer of its data, and the schema of its rows.
+	 * 
+	 * @throws IllegalArgumentException if the asset is inconsistently described
+	 */
+	CsvTable(Csv csv, Callable<CsvTokenizer> tokenizer, Schema schema) {
+		
+		this(csv,tokenizer,schema,null);
+	}
+	
+	private CsvTable(Csv csv, Callable<CsvTokenizer> tokenizer, Schema schema, Path file) {
+		
+		super(columns(csv));
 		
 		this.csv=csv;
+		this.schema=schema;
+		this.file=file;
 		
-		this.iterator = new RowIterator(stream);
+		this.iterator = new RowIterator(tokenizer);
 	
 	}
 	
 	
 	@Override
 	public Iterator<Row> iterator() {
-		return iterator;
+		
+		if (csv.readahead()==0)
+			return iterator;
+		
+		if (readahead==null)
+			readahead = new ReadAhead<>(iterator,csv.readahead(),csv.batch(),"csv-readahead",iterator::close);
+		
+		return readahead;
+	}
+	
+	/**
+	 * Stops parsing and releases the data.
+	 */
+	@Override
+	public void close() {
+		
+		if (readahead!=null)
+			readahead.close();
+		else
+			iterator.close();
+	}
+	
+	@Override
+	public Schema schema() {
+		return iterator.schema;
+	}
+	
+	/**
+	 * Restricts parsing to the values of given columns and to a given number of rows, before iteration starts.
+	 * 
+	 * @param columns the columns to decode, or <code>null</code> to decode all
+	 * @return <code>false</code> if iteration has already started
+	 */
+	boolean pushdown(Collection<String> columns, long rows) {
+		
+		return iterator.pushdown(columns,rows);
 	}
 
 	///////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -56,39 +147,55 @@ public class CsvTable extends AbstractTable {
 	
 	private class RowIterator implements Iterator<Row> {
 
-		private final CSVReader reader;
+		private CsvTokenizer reader;
 		
-		private String[] row;
+		private boolean row;
 		private Throwable error;
 		private int count;
 		
-		public RowIterator(InputStream stream) {
+		//pushed down by consumers
+		private long limit = Long.MAX_VALUE;
+		private Collection<String> pushed;
+		
+		//positions of the values to decode
+		private int[] selection;
+		
+		//and their positions in rows
+		private Schema schema;
+		private int[] slots;
+		
+		public RowIterator(Callable<CsvTokenizer> tokenizer) {
 			
 			try {
 				
-				this.reader =  new CSVReader(new InputStreamReader(stream, csv.encoding()),csv.delimiter(),csv.quote());
+				this.reader =  tokenizer.call();
 				
 				if (csv.hasHeader())
 					parseHeader();
 				
+				if (!csv.columns().isEmpty())
+					select();
+				
+				skip();
+				
 			}
 			catch (Exception e) {
-				throw new IllegalArgumentException("invalid csv asset: cannot read stream",e);
+				throw new IllegalArgumentException("invalid csv asset: cannot read data",e);
 			}
 		}
 		
 		public boolean hasNext() {
 
-			if (row!=null)
+			if (row)
 				return true;
 			
-			if (csv.rows() <= count) {
+			if (csv.rows() <= count || limit <= count) {
 				close();
 				return false;
 			}
 
 			try {
-				row = reader.readNext();
+				row = reader.next();
 				
 				count++;
 				
@@ -96,7 +203,10 @@ public class CsvTable extends AbstractTable {
 				error = e;
 			}
 
-			return row != null;
+			if (!row)
+				close();
+			
+			return row;
 		}
 
 		public Row next() {
@@ -106,11 +216,12 @@ public class CsvTable extends AbstractTable {
 			}
 			catch(RuntimeException e) {
 				close();
+				throw e;
 			}
 			
 			Row result = buildRow();
 			
-			row=null;
+			row=false;
 			
 			return result;
 		}
@@ -120,7 +231,7 @@ public class CsvTable extends AbstractTable {
 			if (error != null)
 				throw new RuntimeException(error);
 
-			if (row == null && !this.hasNext()) // reads ahead
+			if (!row && !this.hasNext()) // reads ahead
 				throw new NoSuchElementException();
 
 		}
@@ -128,18 +239,70 @@ public class CsvTable extends AbstractTable {
 		// helper
 		private Row buildRow() {
 
-			Map<String, String> data = new HashMap<>();
-
 			//synthesise missing columns from first row
-			if (csv.columns().isEmpty())
-				for (int i=0; i< row.length; i++)
-					csv.with(col("column-"+i));
-					
-			for (int i = 0; i < csv.columns().size(); i++)
-				if (i<row.length)
-					data.put(columns.get(i).name(), row[i]);
-
-			return new Row(data);
+			if (selection==null) {
+				
+				if (csv.columns().isEmpty())
+					synthesise(csv,reader.fields());
+				
+				select();
+			}
+			
+			String[] values = new String[schema.size()];
+			
+			//decodes only the values of selected columns
+			for (int i = 0; i < selection.length; i++)
+				if (selection[i]<reader.fields())
+					values[slots[i]] = reader.field(selection[i]);
+
+			return schema.row(values);
+		}
+		
+		private void select() {
+			
+			selection = selection(csv);
+			
+			if (projects(csv))
+				for (int i : selection)
+					columns.add(csv.columns().get(i));
+			
+			schema = CsvTable.this.schema==null ? new Schema(columns) : CsvTable.this.schema;
+			
+			slots = columns.stream().mapToInt(col->schema.slot(col.name())).toArray();
+			
+			if (pushed!=null)
+				narrow();
+		}
+		
+		boolean pushdown(Collection<String> columns, long rows) {
+			
+			if (count>0 || row)
+				return false;
+			
+			limit = Math.min(limit,rows);
+			
+			if (columns!=null) {
+				
+				pushed = columns;
+				
+				if (selection!=null)
+					narrow();
+			}
+			
+			return true;
+		}
+		
+		//keeps only the selected values of pushed columns
+		private void narrow() {
+			
+			List<Integer> kept = new ArrayList<>();
+			
+			for (int i=0; i<selection.length; i++)
+				if (pushed.contains(columns.get(i).name()))
+					kept.add(i);
+			
+			selection = kept.stream().mapToInt(i->selection[i]).toArray();
+			slots = kept.stream().mapToInt(i->slots[i]).toArray();
 		}
 
 		public void remove() {
@@ -158,25 +321,121 @@ public class CsvTable extends AbstractTable {
 		
 		//////////////////////////////////////////////////////////////////////////////
 		
+		//skips offset rows, seeking the closest sampled row if the file is indexed
+		private void skip() throws IOException {
+			
+			long remaining = csv.offset();
+			
+			if (remaining==0)
+				return;
+			
+			CsvIndex index = file==null ? null : CsvIndex.load(csv,file).orElse(null);
+			
+			if (index!=null && remaining>=index.every() && index.samples()>0) {
+				
+				int sample = (int) Math.min(remaining/index.every(), index.samples()-1);
+				
+				reader.close();
+				
+				reader = new MappedCsvTokenizer(csv,file,index.sample(sample),Long.MAX_VALUE);
+				
+				remaining -= (long) sample*index.every();
+			}
+			
+			while (remaining>0 && reader.next())
+				remaining--;
+		}
+		
 		@SneakyThrows
 		private void parseHeader() {
 			
 			//consume header
-			String[] cols = reader.readNext();
-			
-			//use header only if no columns are specified, otherwise ignore it.
-			if (csv.columns().isEmpty())
-				for (int i =0;i<cols.length;i++) {
-					
-					if (cols[i]==null || cols[i].isEmpty()) //synthetic column for missing header value
-						cols[i] = "column-"+(i); 
-					
-					csv.with(col(cols[i]));
-				}
-					
+			if (!reader.next())
+				return;
 			
+			header(csv,reader.record());
 		}
 	}
 	
+	
+	//maps the file, unless it needs transcoding
+	private static CsvTokenizer tokenizer(Csv csv, Path file) throws IOException {
+		
+		if (!isReadable(file) || isDirectory(file))
+			throw new IllegalArgumentException(file+" is unreadable or a directory.");
+		
+		return CsvTokenizer.bytewise(Charset.forName(csv.encoding())) ? 
+					new MappedCsvTokenizer(csv,file) : 
+					new CsvTokenizer(csv,newInputStream(file));
+	}
+	
+	/**
+	 * Returns <code>true</code> if the directives select only some columns.
+	 */
+	static boolean projects(Csv csv) {
+		
+		return !csv.projection().isEmpty() || !csv.positions().isEmpty();
+	}
+	
+	/**
+	 * Returns the columns of a table parsed with given directives: a live view of the directives, unless they select only some columns.
+	 */
+	static List<Column> columns(Csv csv) {
+		
+		return projects(csv) ? new ArrayList<>() : csv.columns();
+	}
+	
+	/**
+	 * Returns the positions of the columns selected by given directives, in order.
+	 * 
+	 * @throws IllegalArgumentException if the directives select unknown columns
+	 */
+	static int[] selection(Csv csv) {
+		
+		List<Column> columns = csv.columns();
+		
+		if (!projects(csv))
+			return IntStream.range(0,columns.size()).toArray();
+		
+		List<String> names = columns.stream().map(Column::name).collect(toList());
+		
+		for (String name : csv.projection())
+			if (!names.contains(name))
+				throw new IllegalArgumentException("invalid csv directives: cannot project unknown column "+name);
+		
+		for (int position : csv.positions())
+			if (position<0 || position>=columns.size())
+				throw new IllegalArgumentException("invalid csv directives: cannot project unknown column at "+position);
+		
+		return IntStream.range(0,columns.size())
+						.filter(i->csv.positions().contains(i) || csv.projection().contains(names.get(i)))
+						.toArray();
+	}
+	
+	/**
+	 * Uses a header for the columns, unless some are already specified.
+	 */
+	static void header(Csv csv, String[] cols) {
+		
+		//use header only if no columns are specified, otherwise ignore it.
+		if (csv.columns().isEmpty())
+			for (int i =0;i<cols.length;i++) {
+				
+				if (cols[i]==null || cols[i].isEmpty()) //synthetic column for missing header value
+					cols[i] = "column-"+(i); 
+				
+				csv.with(col(cols[i]));
+			}
+	}
+	
+	/**
+	 * Synthesises a given number of columns.
+	 */
+	static void synthesise(Csv csv, int size) {
+		
+		for (int i=0; i< size; i++)
+			csv.with(col("column-"+i));
+	}
+	
 
 }
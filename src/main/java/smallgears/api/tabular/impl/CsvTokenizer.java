@@ -0,0 +1,405 @@
+package smallgears.api.tabular.impl;
+
+import static java.nio.charset.StandardCharsets.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+import lombok.NonNull;
+import smallgears.api.tabular.Csv;
+
+/**
+ * Splits a stream of CSV data into records and fields.
+ * <p>
+ * Records are scanned as raw bytes in a large buffer, and fields are tracked as byte ranges of the current record.
+ * They are decoded into Strings only when {@link #field(int)} is called, inline for ASCII, ISO-8859-1 and UTF-8.
+ * <p>
+ * Byte-level scanning requires encodings in which delimiters, quotes and line breaks are always single bytes
+ * (UTF-8 and single-byte encodings). Other encodings are transcoded to UTF-8 first.
+ * <p>
+ * Subclasses may scan other sources of bytes by replacing the buffer on {@link #fill()}.
+ * <p>
+ * Quoting follows the usual conventions: quoted fields may contain delimiters and line breaks,
+ * and a quote is escaped by doubling it.
+ */
+class CsvTokenizer implements Closeable {
+
+	static final int BUFFER_SIZE = 1 << 16;
+
+	private final InputStream stream;
+	private final Decoder decoder;
+
+	private final byte delimiter;
+	private final byte quote;
+
+	protected ByteBuffer buffer;
+	protected int limit;
+	protected boolean eof;
+
+	//absolute offset of buffer[0] in the data
+	protected long base;
+
+	//offset of current record, and of next unscanned byte
+	protected int record;
+	protected int pos;
+
+	//field ranges, relative to current record
+	private int fields;
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+	private boolean[] quoted = new boolean[16];
+
+	//for unescaping
+	private byte[] scratch = new byte[64];
+
+
+	CsvTokenizer(@NonNull Csv csv, @NonNull InputStream stream) {
+
+		Charset charset = Charset.forName(csv.encoding());
+
+		if (!bytewise(charset)) {
+			stream = new Transcoder(new InputStreamReader(stream,charset));
+			charset = UTF_8;
+		}
+
+		this.stream=stream;
+		this.decoder=new Decoder(charset);
+		this.delimiter=ascii(csv.delimiter());
+		this.quote=ascii(csv.quote());
+		this.buffer=ByteBuffer.allocate(BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates an instance for subclasses that provide their own buffers.
+	 *
+	 * @throws IllegalArgumentException if the encoding is not bytewise
+	 */
+	protected CsvTokenizer(@NonNull Csv csv) {
+
+		Charset charset = Charset.forName(csv.encoding());
+
+		this.stream=null;
+		this.decoder=new Decoder(charset);
+		this.delimiter=ascii(csv.delimiter());
+		this.quote=ascii(csv.quote());
+
+		if (!bytewise(charset))
+			throw new IllegalArgumentException("invalid csv directives: "+charset+" cannot be scanned bytewise");
+	}
+
+	/**
+	 * Advances to the next record, returning <code>false</code> if there are no more records.
+	 */
+	boolean next() throws IOException {
+
+		fields=0;
+
+		record=pos;
+
+		if (!available())
+			return false;
+
+		int start = 0;
+		boolean inquotes = false;
+		boolean hasquotes = false;
+
+		while (true) {
+
+			if (pos==limit && !available()) { // end of data terminates record
+				add(start,pos-record,hasquotes);
+				return true;
+			}
+
+			byte b = buffer.get(pos++);
+
+			if (b==quote) {
+				inquotes=!inquotes;
+				hasquotes=true;
+			}
+			else if (!inquotes)
+
+				if (b==delimiter) {
+					add(start,pos-1-record,hasquotes);
+					start=pos-record;
+					hasquotes=false;
+				}
+				else if (b=='\n' || b=='\r') {
+
+					add(start,pos-1-record,hasquotes);
+
+					if (b=='\r' && available() && buffer.get(pos)=='\n')
+						pos++;
+
+					return true;
+				}
+
+		}
+	}
+
+	/**
+	 * Returns the number of fields in the current record.
+	 */
+	int fields() {
+		return fields;
+	}
+
+	/**
+	 * Decodes a field of the current record.
+	 */
+	String field(int i) {
+
+		if (i<0 || i>=fields)
+			throw new IndexOutOfBoundsException("no field "+i+" in record of "+fields);
+
+		int start = record+starts[i];
+		int length = ends[i]-starts[i];
+
+		if (quoted[i])
+			return unescape(start,length);
+
+		if (buffer.hasArray())
+			return decoder.decode(buffer.array(),start,length);
+
+		return decoder.decode(copy(start,length),0,length);
+	}
+
+	/**
+	 * Returns all the fields of the current record.
+	 */
+	String[] record() {
+
+		String[] values = new String[fields];
+
+		for (int i=0; i<fields;i++)
+			values[i]=field(i);
+
+		return values;
+	}
+
+	/**
+	 * Returns the offset of the current record in the stream.
+	 */
+	long position() {
+		return base+record;
+	}
+
+	/**
+	 * Returns the offset of the first byte past the current record in the stream.
+	 */
+	long consumed() {
+		return base+pos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		stream.close();
+	}
+
+	/**
+	 * Makes more data available, so that data from the current record onwards sits in the buffer up to its limit.
+	 * <p>
+	 * Offsets must be adjusted if the buffer is shifted, and the end of data flagged once reached.
+	 */
+	protected void fill() throws IOException {
+
+		byte[] array = buffer.array();
+
+		if (record>0) {
+
+			System.arraycopy(array,record,array,0,limit-record);
+
+			base+=record;
+			limit-=record;
+			pos-=record;
+			record=0;
+		}
+
+		if (limit==array.length) { //record does not fit
+			array = Arrays.copyOf(array,array.length*2);
+			buffer = ByteBuffer.wrap(array);
+		}
+
+		int read = stream.read(array,limit,array.length-limit);
+
+		if (read<0)
+			eof=true;
+		else
+			limit+=read;
+	}
+
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+
+	private void add(int start, int end, boolean hasquotes) {
+
+		if (fields==starts.length) {
+			starts=Arrays.copyOf(starts,fields*2);
+			ends=Arrays.copyOf(ends,fields*2);
+			quoted=Arrays.copyOf(quoted,fields*2);
+		}
+
+		starts[fields]=start;
+		ends[fields]=end;
+		quoted[fields]=hasquotes;
+		fields++;
+	}
+
+	//drops enclosing quotes and collapses doubled ones
+	private String unescape(int start, int length) {
+
+		byte[] scratch = scratch(length);
+
+		int n=0;
+		boolean inquotes=false;
+
+		for (int i=start; i<start+length; i++) {
+
+			byte b = buffer.get(i);
+
+			if (b!=quote)
+				scratch[n++]=b;
+			else if (inquotes && i+1<start+length && buffer.get(i+1)==quote) {
+				scratch[n++]=b;
+				i++;
+			}
+			else
+				inquotes=!inquotes;
+		}
+
+		return decoder.decode(scratch,0,n);
+	}
+
+	//buffer without backing array
+	private byte[] copy(int start, int length) {
+
+		byte[] scratch = scratch(length);
+
+		for (int i=0; i<length; i++)
+			scratch[i]=buffer.get(start+i);
+
+		return scratch;
+	}
+
+	private byte[] scratch(int length) {
+
+		if (scratch.length<length)
+			scratch = new byte[Math.max(length,scratch.length*2)];
+
+		return scratch;
+	}
+
+	//makes sure there is at least one unscanned byte, unless data is over.
+	private boolean available() throws IOException {
+
+		while (pos==limit) {
+
+			if (eof)
+				return false;
+
+			fill();
+		}
+
+		return true;
+	}
+
+	private static byte ascii(char c) {
+
+		if (c>127)
+			throw new IllegalArgumentException("invalid csv directives: "+c+" is not an ASCII character");
+
+		return (byte) c;
+	}
+
+	//ASCII is encoded as single bytes which cannot occur in the encoding of other characters
+	static boolean bytewise(Charset charset) {
+
+		if (charset.equals(UTF_8))
+			return true;
+
+		if (!charset.canEncode() || charset.newEncoder().maxBytesPerChar()!=1)
+			return false;
+
+		byte[] probe = new byte[128];
+
+		for (int i=0; i<probe.length; i++)
+			probe[i]=(byte) i;
+
+		return Arrays.equals(probe,new String(probe,US_ASCII).getBytes(charset));
+	}
+
+
+	//re-encodes characters in UTF-8
+	private static class Transcoder extends InputStream {
+
+		private final Reader reader;
+
+		private final CharsetEncoder encoder = UTF_8.newEncoder()
+													.onMalformedInput(CodingErrorAction.REPLACE)
+													.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+		private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+		private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE*3);
+
+		private boolean eof;
+
+		Transcoder(Reader reader) {
+
+			this.reader=reader;
+
+			chars.flip();
+			bytes.flip();
+		}
+
+		@Override
+		public int read() throws IOException {
+
+			byte[] b = new byte[1];
+
+			return read(b,0,1)<0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+
+			while (!bytes.hasRemaining()) {
+
+				if (eof)
+					return -1;
+
+				chars.compact();
+
+				eof = reader.read(chars)<0;
+
+				chars.flip();
+				bytes.clear();
+
+				encoder.encode(chars,bytes,eof);
+
+				if (eof)
+					encoder.flush(bytes);
+
+				bytes.flip();
+			}
+
+			int n = Math.min(len,bytes.remaining());
+
+			bytes.get(b,off,n);
+
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,277 @@
+package smallgears.api.tabular.impl;
+
+import static java.nio.charset.StandardCharsets.*;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import lombok.NonNull;
+import smallgears.api.tabular.Column;
+import smallgears.api.tabular.Csv;
+import smallgears.api.tabular.Row;
+
+/**
+ * Writes records of CSV data to a stream.
+ * <p>
+ * Values are encoded straight into a reusable buffer, without intermediate strings or arrays.
+ * UTF-8, ASCII and ISO-8859-1 are encoded inline, other encodings through a {@link Writer}.
+ * Unmappable characters are replaced with <code>?</code>.
+ * <p>
+ * Values are quoted only when they contain delimiters, quotes or line breaks, and quotes are escaped by doubling them.
+ * Records end with a newline.
+ */
+public class CsvWriter implements Flushable, Closeable {
+
+	static final int BUFFER_SIZE = 1 << 16;
+
+	private static final int ASCII=0, LATIN=1, UTF8=2, OTHER=3;
+
+	private final OutputStream stream;
+
+	//for other encodings
+	private final Writer writer;
+
+	private final int encoding;
+
+	private final char delimiter;
+	private final char quote;
+
+	//bytes, or chars for other encodings
+	private final byte[] bytes;
+	private final char[] chars;
+	private int length;
+
+	//no value yet in current record
+	private boolean first = true;
+
+	public CsvWriter(@NonNull Csv csv, @NonNull OutputStream stream) {
+
+		Charset charset = Charset.forName(csv.encoding());
+
+		this.stream=stream;
+		this.delimiter=csv.delimiter();
+		this.quote=csv.quote();
+
+		this.encoding = charset.equals(UTF_8) ? UTF8 : charset.equals(US_ASCII) ? ASCII : charset.equals(ISO_8859_1) ? LATIN : OTHER;
+
+		this.writer = encoding==OTHER ? new OutputStreamWriter(stream,charset) : null;
+
+		this.bytes = encoding==OTHER ? null : new byte[BUFFER_SIZE];
+		this.chars = encoding==OTHER ? new char[BUFFER_SIZE] : null;
+	}
+
+	/**
+	 * Writes the names of given columns as a record.
+	 */
+	public CsvWriter header(@NonNull List<Column> columns) throws IOException {
+
+		for (int i=0; i<columns.size(); i++)
+			value(columns.get(i).name());
+
+		return end();
+	}
+
+	/**
+	 * Writes the values of a row for given columns as a record.
+	 */
+	public CsvWriter row(@NonNull Row row, @NonNull List<Column> columns) throws IOException {
+
+		for (int i=0; i<columns.size(); i++)
+			value(row.get(columns.get(i)));
+
+		return end();
+	}
+
+	/**
+	 * Writes given values as a record.
+	 */
+	public CsvWriter record(@NonNull String ... values) throws IOException {
+
+		for (String value : values)
+			value(value);
+
+		return end();
+	}
+
+	/**
+	 * Writes a value in the current record, or nothing but its delimiter if it is <code>null</code>.
+	 */
+	public CsvWriter value(String value) throws IOException {
+
+		if (!first)
+			put(delimiter);
+
+		first=false;
+
+		if (value==null)
+			return this;
+
+		if (quoted(value)) {
+
+			put(quote);
+
+			for (int i=0; i<value.length(); i++) {
+
+				char c = value.charAt(i);
+
+				if (c==quote)
+					put(quote);
+
+				i = put(value,i,c);
+			}
+
+			put(quote);
+		}
+		else
+			for (int i=0; i<value.length(); i++)
+				i = put(value,i,value.charAt(i));
+
+		return this;
+	}
+
+	/**
+	 * Ends the current record.
+	 */
+	public CsvWriter end() throws IOException {
+
+		put('\n');
+
+		first=true;
+
+		return this;
+	}
+
+	/**
+	 * Writes buffered data to the stream, and flushes it.
+	 */
+	@Override
+	public void flush() throws IOException {
+
+		drain();
+
+		if (writer==null)
+			stream.flush();
+		else
+			writer.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		drain();
+
+		if (writer==null)
+			stream.close();
+		else
+			writer.close();
+	}
+
+
+	//////////////////////////////////////////////////////////////////////////////////////////////
+
+
+	private boolean quoted(String value) {
+
+		for (int i=0; i<value.length(); i++) {
+
+			char c = value.charAt(i);
+
+			if (c==delimiter || c==quote || c=='\n' || c=='\r')
+				return true;
+		}
+
+		return false;
+	}
+
+	//writes the char at i, possibly with the next, and returns the index of the last one written
+	private int put(String value, int i, char c) throws IOException {
+
+		//pairs are encoded or replaced as a whole, as by the JDK
+		if (encoding!=OTHER && Character.isHighSurrogate(c) && i+1<value.length() && Character.isLowSurrogate(value.charAt(i+1))) {
+
+			if (encoding!=UTF8) {
+				put('?');
+				return i+1;
+			}
+
+			int cp = Character.toCodePoint(c,value.charAt(i+1));
+
+			reserve(4);
+
+			bytes[length++] = (byte) (0xf0 | cp >> 18);
+			bytes[length++] = (byte) (0x80 | cp >> 12 & 0x3f);
+			bytes[length++] = (byte) (0x80 | cp >> 6 & 0x3f);
+			bytes[length++] = (byte) (0x80 | cp & 0x3f);
+
+			return i+1;
+		}
+
+		put(c);
+
+		return i;
+	}
+
+	private void put(char c) throws IOException {
+
+		reserve(3);
+
+		switch(encoding) {
+
+			case OTHER:
+				chars[length++]=c;
+				return;
+
+			case ASCII:
+				bytes[length++] = (byte) (c<0x80 ? c : '?');
+				return;
+
+			case LATIN:
+				bytes[length++] = (byte) (c<0x100 ? c : '?');
+				return;
+
+			default:
+
+				if (c<0x80)
+					bytes[length++] = (byte) c;
+
+				else if (c<0x800) {
+					bytes[length++] = (byte) (0xc0 | c >> 6);
+					bytes[length++] = (byte) (0x80 | c & 0x3f);
+				}
+
+				else if (Character.isSurrogate(c)) //unpaired
+					bytes[length++] = '?';
+
+				else {
+					bytes[length++] = (byte) (0xe0 | c >> 12);
+					bytes[length++] = (byte) (0x80 | c >> 6 & 0x3f);
+					bytes[length++] = (byte) (0x80 | c & 0x3f);
+				}
+		}
+	}
+
+	private void reserve(int n) throws IOException {
+
+		if (length+n > BUFFER_SIZE)
+			drain();
+	}
+
+	private void drain() throws IOException {
+
+		if (length==0)
+			return;
+
+		if (writer==null)
+			stream.write(bytes,0,length);
+		else
+			writer.write(chars,0,length);
+
+		length=0;
+	}
+}
@@ -0,0 +1,140 @@
+package smallgears.api.tabular.impl;
+
+import static java.nio.charset.StandardCharsets.*;
+
+import java.nio.charset.Charset;
+
+/**
+ * Decodes ranges of bytes into Strings.
+ * <p>
+ * ASCII, ISO-8859-1 and well-formed UTF-8 are decoded inline, without {@link java.nio.charset.CharsetDecoder}s.
+ * Other encodings, and malformed input, are decoded by the JDK, so that replacements are the same.
+ * <p>
+ * Instances reuse a buffer, so they are not thread-safe.
+ */
+class Decoder {
+
+	private static final int LATIN=0, ASCII=1, UTF8=2, OTHER=3;
+
+	private final Charset charset;
+
+	private final int decoding;
+
+	private char[] chars = new char[64];
+
+	Decoder(Charset charset) {
+
+		this.charset=charset;
+		this.decoding = charset.equals(ISO_8859_1) ? LATIN : charset.equals(US_ASCII) ? ASCII : charset.equals(UTF_8) ? UTF8 : OTHER;
+	}
+
+	/**
+	 * Decodes a range of bytes.
+	 */
+	@SuppressWarnings("deprecation")
+	String decode(byte[] bytes, int start, int length) {
+
+		switch(decoding) {
+
+			case LATIN:
+				return new String(bytes,0,start,length);
+
+			case ASCII:
+			case UTF8:
+
+				int end = start+length;
+				int i = start;
+
+				while (i<end && bytes[i]>=0)
+					i++;
+
+				if (i==end)
+					return new String(bytes,0,start,length);
+
+				if (decoding==UTF8) {
+
+					String decoded = utf8(bytes,start,i,end);
+
+					if (decoded!=null)
+						return decoded;
+				}
+
+				return new String(bytes,start,length,charset);
+
+			default:
+				return new String(bytes,start,length,charset);
+		}
+	}
+
+
+	//////////////////////////////////////////////////////////////////////////////////////////////
+
+
+	//decodes from the first non-ASCII byte, or returns null if input is malformed
+	private String utf8(byte[] bytes, int start, int i, int end) {
+
+		if (chars.length<end-start)
+			chars = new char[Math.max(end-start,chars.length*2)];
+
+		int n=0;
+
+		for (int j=start; j<i; j++)
+			chars[n++]=(char) bytes[j];
+
+		while (i<end) {
+
+			int b = bytes[i++];
+
+			if (b>=0)
+				chars[n++]=(char) b;
+
+			else if ((b & 0xe0)==0xc0) { //2 bytes
+
+				if (i>=end || b==(byte) 0xc0 || b==(byte) 0xc1 || !continuation(bytes[i]))
+					return null;
+
+				chars[n++]=(char) ((b & 0x1f)<<6 | bytes[i++] & 0x3f);
+			}
+
+			else if ((b & 0xf0)==0xe0) { //3 bytes
+
+				if (i+1>=end || !continuation(bytes[i]) || !continuation(bytes[i+1]))
+					return null;
+
+				char c = (char) ((b & 0x0f)<<12 | (bytes[i] & 0x3f)<<6 | bytes[i+1] & 0x3f);
+
+				if (c<0x800 || Character.isSurrogate(c))
+					return null;
+
+				chars[n++]=c;
+
+				i+=2;
+			}
+
+			else if ((b & 0xf8)==0xf0) { //4 bytes
+
+				if (i+2>=end || !continuation(bytes[i]) || !continuation(bytes[i+1]) || !continuation(bytes[i+2]))
+					return null;
+
+				int cp = (b & 0x07)<<18 | (bytes[i] & 0x3f)<<12 | (bytes[i+1] & 0x3f)<<6 | bytes[i+2] & 0x3f;
+
+				if (cp<0x10000 || cp>Character.MAX_CODE_POINT)
+					return null;
+
+				chars[n++]=Character.highSurrogate(cp);
+				chars[n++]=Character.lowSurrogate(cp);
+
+				i+=3;
+			}
+
+			else
+				return null;
+		}
+
+		return new String(chars,0,n);
+	}
+
+	private static boolean continuation(byte b) {
+		return (b & 0xc0)==0x80;
+	}
+}
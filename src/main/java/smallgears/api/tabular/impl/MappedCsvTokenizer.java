@@ -0,0 +1,79 @@
+package smallgears.api.tabular.impl;
+
+import static java.nio.channels.FileChannel.MapMode.*;
+import static java.nio.file.StandardOpenOption.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import lombok.NonNull;
+import smallgears.api.tabular.Csv;
+
+/**
+ * A {@link CsvTokenizer} that maps a range of a file in memory, rather than reading it into a buffer.
+ * <p>
+ * The range is mapped in large windows, and a new window is mapped from the current record when scanning reaches
+ * the end of the previous one. Fields are decoded straight from mapped memory, so the page cache is the only buffer.
+ * <p>
+ * Records cannot be larger than a window.
+ */
+class MappedCsvTokenizer extends CsvTokenizer {
+
+	static final int WINDOW_SIZE = 1 << 30;
+
+	private final FileChannel channel;
+	private final long end;
+
+	/**
+	 * Creates an instance over the whole of a file.
+	 */
+	MappedCsvTokenizer(Csv csv, Path file) throws IOException {
+
+		this(csv,file,0,Long.MAX_VALUE);
+	}
+
+	/**
+	 * Creates an instance over a range of a file.
+	 */
+	MappedCsvTokenizer(@NonNull Csv csv, @NonNull Path file, long from, long to) throws IOException {
+
+		super(csv);
+
+		this.channel = FileChannel.open(file,READ);
+		this.end = Math.min(to,channel.size());
+
+		this.buffer = ByteBuffer.allocate(0);
+		this.base = from;
+	}
+
+	@Override
+	protected void fill() throws IOException {
+
+		long start = base+record;
+		long remaining = end-start;
+
+		if (remaining <= limit-record) { //window already reaches the end
+			eof=true;
+			return;
+		}
+
+		if (record==0 && limit==WINDOW_SIZE)
+			throw new IOException("invalid csv asset: record at "+start+" exceeds "+WINDOW_SIZE+" bytes");
+
+		int size = (int) Math.min(remaining,WINDOW_SIZE);
+
+		buffer = channel.map(READ_ONLY,start,size);
+
+		base=start;
+		limit=size;
+		pos-=record;
+		record=0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
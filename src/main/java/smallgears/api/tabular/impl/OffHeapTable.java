@@ -0,0 +1,566 @@
+package smallgears.api.tabular.impl;
+
+import static java.nio.charset.StandardCharsets.*;
+import static java.util.Arrays.*;
+import static java.util.stream.Collectors.*;
+import static smallgears.api.tabular.utils.TableUtils.*;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import smallgears.api.tabular.Column;
+import smallgears.api.tabular.Row;
+import smallgears.api.tabular.Table;
+import smallgears.api.tabular.operations.Indexes;
+import smallgears.api.tabular.utils.MaterialisedTable;
+
+/**
+ * A {@link Table} that materialises its elements outside the Java heap, and can be iterated over multiple times.
+ * <p>
+ * Rows are encoded in direct buffers, and so are their addresses.
+ * The heap holds only the names of columns, so its size and the cost of garbage collection do not grow with the table.
+ * <p>
+ * Rows are produced on iteration, and decode their values on first access. Changes to their values are changes to the table:
+ * the row is encoded anew, over the previous encoding if it fits, and otherwise elsewhere, without reclaiming the space of the previous encoding.
+ * Merging a row encodes it once.
+ * Removing rows shifts the positions of the following ones, and invalidates the rows produced before the removal.
+ * <p>
+ * Memory is released on {@link #close()}, after which the table can no longer be used.
+ *
+ * @see Table#materialise(java.util.function.Function)
+ */
+@Slf4j
+public class OffHeapTable extends AbstractTable implements MaterialisedTable, AutoCloseable {
+
+	static final int MIN_SEGMENT = 1 << 16;
+	static final int MAX_SEGMENT = 1 << 24;
+
+	//addresses per block
+	static final int BLOCK = 1 << 13;
+
+	//column names, by code
+	private final List<String> names = new ArrayList<>();
+	private final Map<String,Integer> codes = new HashMap<>();
+
+	//encoded rows
+	private final List<ByteBuffer> segments = new ArrayList<>();
+
+	//row addresses, as segment index and offset
+	private final List<ByteBuffer> blocks = new ArrayList<>();
+
+	private final Indexes indexes = new Indexes(this);
+
+	private int size;
+
+	private boolean closed;
+
+
+	public OffHeapTable(List<Column> columns, @NonNull Iterable<Row> rows) {
+
+		super(columns);
+
+		add(rows);
+	}
+
+	/**
+	 * Materialises a given table.
+	 */
+	public OffHeapTable(Table table) {
+
+		this(table.columns(),table);
+	}
+
+
+	@Override
+	public Iterator<Row> iterator() {
+
+		open();
+
+		return new Iterator<Row>() {
+
+			int position = 0;
+
+			@Override
+			public boolean hasNext() {
+				return position<size;
+			}
+
+			@Override
+			public Row next() {
+
+				if (!hasNext())
+					throw new NoSuchElementException();
+
+				return new Row(new View(position++));
+			}
+		};
+	}
+
+	@Override
+	public MaterialisedTable add(Row ... rows) {
+
+		return add(asList(rows));
+	}
+
+	@Override
+	public MaterialisedTable add(Iterable<Row> rows) {
+
+		open();
+
+		int from = size;
+
+		for (Row row : rows) {
+
+			if (size==blocks.size()*BLOCK)
+				blocks.add(ByteBuffer.allocateDirect(BLOCK*Long.BYTES));
+
+			address(size++,encode(row));
+		}
+
+		if (indexes.active())
+			indexes.added(IntStream.range(from,size).mapToObj(i->new Row(new View(i))).collect(toList()));
+
+		return this;
+	}
+
+	@Override
+	public MaterialisedTable remove(Row... rows) {
+
+		return remove(asList(rows));
+	}
+
+	/**
+	 * Removes rows from this table, in a single pass.
+	 * <p>
+	 * As for lists, each row removes the first equal row that has not been removed already.
+	 */
+	@Override
+	public MaterialisedTable remove(Iterable<Row> rows) {
+
+		return removeIf(occurrences(rows));
+	}
+
+	/**
+	 * Removes the rows of this table that satisfy a given predicate, in a single pass.
+	 * <p>
+	 * The addresses of the other rows are compacted, but the space of removed rows is not reclaimed.
+	 */
+	@Override
+	public MaterialisedTable removeIf(@NonNull Predicate<? super Row> filter) {
+
+		open();
+
+		int target = 0;
+
+		for (int source=0; source<size; source++)
+			if (!filter.test(new Row(new View(source))))
+				address(target++,address(source));
+
+		//positions have shifted
+		if (target<size)
+			indexes.invalidate();
+
+		size=target;
+
+		return this;
+	}
+
+	@Override
+	public Spliterator<Row> spliterator() {
+
+		open();
+
+		return range(size, i -> new Row(new View(i)));
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the indexes of this table, which follow rows as they are added, and become stale when rows are removed.
+	 */
+	@Override
+	public Indexes indexes() {
+		return indexes;
+	}
+
+	/**
+	 * Returns the number of bytes this table holds outside the heap.
+	 */
+	public long footprint() {
+
+		long bytes = 0;
+
+		for (ByteBuffer segment : segments)
+			bytes+=segment.capacity();
+
+		return bytes+(long) blocks.size()*BLOCK*Long.BYTES;
+	}
+
+	/**
+	 * Releases the memory of this table.
+	 */
+	@Override
+	public void close() {
+
+		if (closed)
+			return;
+
+		closed=true;
+
+		segments.forEach(OffHeapTable::free);
+		blocks.forEach(OffHeapTable::free);
+
+		segments.clear();
+		blocks.clear();
+	}
+
+
+	@Override
+	public boolean equals(Object other) {
+
+		return other instanceof OffHeapTable && super.equals(other) && rows().equals(((OffHeapTable) other).rows());
+	}
+
+	@Override
+	public int hashCode() {
+
+		return 31*super.hashCode()+rows().hashCode();
+	}
+
+
+	//////////////////////////////////////////////////////////////////////////////////////////////
+
+
+	private List<Row> rows() {
+
+		return stream().collect(toList());
+	}
+
+	private void open() {
+
+		if (closed)
+			throw new IllegalStateException("table is closed");
+	}
+
+	private long address(int position) {
+
+		return blocks.get(position/BLOCK).getLong((position%BLOCK)*Long.BYTES);
+	}
+
+	private void address(int position, long address) {
+
+		blocks.get(position/BLOCK).putLong((position%BLOCK)*Long.BYTES,address);
+	}
+
+	private int code(String name) {
+
+		return codes.computeIfAbsent(name, $ -> {
+			names.add(name);
+			return names.size()-1;
+		});
+	}
+
+	//  record: entries, then (column code, value length, value bytes) per entry
+
+	private long encode(Row row) {
+
+		return encode(row,-1);
+	}
+
+	//over a previous encoding, if it has room enough
+	private long encode(Row row, long previous) {
+
+		List<byte[]> values = new ArrayList<>();
+		List<Integer> cols = new ArrayList<>();
+
+		row.forEach((col,val) -> {
+
+			if (val!=null) {
+				cols.add(code(col));
+				values.add(val.getBytes(UTF_8));
+			}
+		});
+
+		int length = Integer.BYTES;
+
+		for (byte[] bytes : values)
+			length += 2*Integer.BYTES + bytes.length;
+
+		long address = previous>=0 && length<=length(previous) ? previous : reserve(length);
+
+		ByteBuffer segment = segments.get((int) (address>>>32));
+
+		int offset = (int) address;
+
+		segment.putInt(offset,values.size());
+		offset+=Integer.BYTES;
+
+		for (int i=0; i<values.size(); i++) {
+
+			byte[] bytes = values.get(i);
+
+			segment.putInt(offset,cols.get(i));
+			segment.putInt(offset+Integer.BYTES,bytes.length);
+
+			offset+=2*Integer.BYTES;
+
+			for (byte b : bytes)
+				segment.put(offset++,b);
+		}
+
+		return address;
+	}
+
+	private int length(long address) {
+
+		ByteBuffer segment = segments.get((int) (address>>>32));
+
+		int offset = (int) address;
+
+		int entries = segment.getInt(offset);
+
+		int length = Integer.BYTES;
+
+		for (int i=0; i<entries; i++)
+			length += 2*Integer.BYTES + segment.getInt(offset+length+Integer.BYTES);
+
+		return length;
+	}
+
+	private Map<String,String> decode(long address) {
+
+		ByteBuffer segment = segments.get((int) (address>>>32));
+
+		int offset = (int) address;
+
+		int entries = segment.getInt(offset);
+		offset+=Integer.BYTES;
+
+		Map<String,String> values = new HashMap<>();
+
+		byte[] bytes = new byte[64];
+
+		for (int i=0; i<entries; i++) {
+
+			String name = names.get(segment.getInt(offset));
+			int length = segment.getInt(offset+Integer.BYTES);
+
+			offset+=2*Integer.BYTES;
+
+			if (bytes.length<length)
+				bytes = new byte[Math.max(length,2*bytes.length)];
+
+			for (int b=0; b<length; b++)
+				bytes[b]=segment.get(offset++);
+
+			values.put(name,new String(bytes,0,length,UTF_8));
+		}
+
+		return values;
+	}
+
+	//reserves space for a record, in the last segment or a new one
+	private long reserve(int length) {
+
+		ByteBuffer last = segments.isEmpty() ? null : segments.get(segments.size()-1);
+
+		if (last==null || last.remaining()<length) {
+
+			int capacity = last==null ? MIN_SEGMENT : Math.min(2*last.capacity(),MAX_SEGMENT);
+
+			last = ByteBuffer.allocateDirect(Math.max(capacity,length));
+
+			segments.add(last);
+		}
+
+		int offset = last.position();
+
+		last.position(offset+length);
+
+		return ((long) (segments.size()-1) << 32) | offset;
+	}
+
+	//releases direct memory now rather than on collection, where the platform allows it
+	private static void free(ByteBuffer buffer) {
+
+		try {
+
+			try {
+
+				//java 9+
+				Class<?> type = Class.forName("sun.misc.Unsafe");
+				Field field = type.getDeclaredField("theUnsafe");
+				field.setAccessible(true);
+
+				type.getMethod("invokeCleaner",ByteBuffer.class).invoke(field.get(null),buffer);
+			}
+			catch (NoSuchMethodException e) {
+
+				//java 8
+				Method cleaner = buffer.getClass().getMethod("cleaner");
+				cleaner.setAccessible(true);
+
+				Object instance = cleaner.invoke(buffer);
+
+				instance.getClass().getMethod("clean").invoke(instance);
+			}
+		}
+		catch (Exception e) {
+			log.debug("cannot release direct memory, will be released on collection",e);
+		}
+	}
+
+
+	//the values of a row, decoded on first access
+	private class View extends AbstractMap<String,String> {
+
+		final int position;
+
+		Map<String,String> values;
+
+		View(int position) {
+			this.position=position;
+		}
+
+		@Override
+		public String get(Object key) {
+			return decoded().get(key);
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return decoded().containsKey(key);
+		}
+
+		@Override
+		public String put(String key, String value) {
+
+			String previous = value==null ? decoded().remove(key) : decoded().put(key,value);
+
+			update();
+
+			return previous;
+		}
+
+		@Override
+		public String remove(Object key) {
+
+			String previous = decoded().remove(key);
+
+			update();
+
+			return previous;
+		}
+
+		//encodes the row once, not once per entry
+		@Override
+		public void putAll(Map<? extends String,? extends String> entries) {
+
+			decoded();
+
+			entries.forEach((key,value) -> {
+
+				if (value==null)
+					values.remove(key);
+				else
+					values.put(key,value);
+			});
+
+			update();
+		}
+
+		//changes through entries and iterators are changes to the table
+		@Override
+		public Set<Entry<String,String>> entrySet() {
+
+			Set<Entry<String,String>> entries = decoded().entrySet();
+
+			return new AbstractSet<Entry<String,String>>() {
+
+				@Override
+				public int size() {
+					return entries.size();
+				}
+
+				@Override
+				public Iterator<Entry<String,String>> iterator() {
+
+					Iterator<Entry<String,String>> it = entries.iterator();
+
+					return new Iterator<Entry<String,String>>() {
+
+						@Override
+						public boolean hasNext() {
+							return it.hasNext();
+						}
+
+						@Override
+						public Entry<String,String> next() {
+
+							Entry<String,String> entry = it.next();
+
+							return new SimpleEntry<String,String>(entry) {
+
+								private static final long serialVersionUID = 1L;
+
+								@Override
+								public String setValue(String value) {
+
+									String previous = entry.setValue(value);
+
+									super.setValue(value);
+
+									update();
+
+									return previous;
+								}
+							};
+						}
+
+						@Override
+						public void remove() {
+
+							it.remove();
+
+							update();
+						}
+					};
+				}
+			};
+		}
+
+		private Map<String,String> decoded() {
+
+			open();
+
+			if (values==null)
+				values = decode(address(position));
+
+			return values;
+		}
+
+		//encodes the row anew, in place if it has room enough
+		private void update() {
+
+			address(position,encode(new Row(values),address(position)));
+		}
+	}
+}
@@ -0,0 +1,412 @@
+package smallgears.api.tabular.impl;
+
+import static java.lang.Integer.*;
+import static java.nio.file.Files.*;
+import static java.nio.file.StandardOpenOption.*;
+import static java.util.Collections.*;
+import static java.util.stream.Collectors.*;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+import lombok.NonNull;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import smallgears.api.tabular.Csv;
+import smallgears.api.tabular.Row;
+import smallgears.api.tabular.Schema;
+import smallgears.api.tabular.Table;
+
+/**
+ * A {@link Table} backed up by a file of CSV data, which is parsed on multiple threads.
+ * <p>
+ * The file is split in chunks of records which are parsed on a dedicated {@link ForkJoinPool}, a few chunks ahead of iteration.
+ * Rows follow the order of the file, unless {@link Csv#ordered()} is <code>false</code>: then they follow the order in which
+ * chunks are parsed.
+ * <p>
+ * Chunk boundaries are found from the parity of the quotes that precede them, so that quoted line breaks do not split records.
+ * <p>
+ * Chunks are mapped in memory if the directives are {@link Csv#mapped()}.
+ *
+ * @see Csv#parallelism()
+ */
+@Slf4j
+public class ParallelCsvTable extends AbstractTable implements AutoCloseable {
+
+	static final int MIN_CHUNK = 1 << 16;
+	static final int MAX_CHUNK = 1 << 23;
+
+	private final Csv csv;
+	private final Path file;
+
+	private final FileChannel channel;
+	private final ForkJoinPool pool;
+
+	//nominal starts of chunks, followed by the end of file
+	private long[] starts;
+
+	//whether nominal starts fall within quotes
+	private boolean[] quoted;
+
+	//whether starts are known record boundaries
+	private boolean exact;
+
+	//shared by all chunks
+	private Schema schema;
+
+	private final ChunkIterator iterator;
+
+
+	/**
+	 * Returns <code>true</code> if given directives allow parallel parsing.
+	 */
+	public static boolean supports(@NonNull Csv csv) {
+
+		return csv.parallelism()>1 && csv.rows()==MAX_VALUE && csv.offset()==0 && CsvTokenizer.bytewise(Charset.forName(csv.encoding()));
+	}
+
+	/**
+	 * Creates an instance from a given {@link Csv} dataset and its file.
+	 *
+	 * @throws IllegalArgumentException if the file is unreadable or the asset is inconsistently described
+	 */
+	public ParallelCsvTable(@NonNull Csv csv, @NonNull Path file) {
+
+		super(CsvTable.columns(csv));
+
+		if (!isReadable(file) || isDirectory(file))
+			throw new IllegalArgumentException(file+" is unreadable or a directory.");
+
+		this.csv=csv;
+		this.file=file;
+
+		this.pool = new ForkJoinPool(csv.parallelism());
+
+		try {
+
+			this.channel = FileChannel.open(file,READ);
+
+			split(parseHeader());
+		}
+		catch (Exception e) {
+			pool.shutdownNow();
+			throw new IllegalArgumentException("invalid csv asset: cannot read "+file,e);
+		}
+
+		this.iterator = new ChunkIterator();
+	}
+
+	@Override
+	public Iterator<Row> iterator() {
+		return iterator;
+	}
+
+	@Override
+	public Schema schema() {
+		return schema;
+	}
+
+	/**
+	 * Stops parsing and releases the file.
+	 */
+	@Override
+	public void close() {
+
+		pool.shutdownNow();
+
+		try {
+			channel.close();
+		} catch (Exception e) {
+			log.warn("could not close CSV file", e);
+		}
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////////////////////
+
+	//returns the offset of the first row
+	private long parseHeader() throws IOException {
+
+		CsvTokenizer tokenizer = new CsvTokenizer(csv, new Range(0,channel.size()));
+
+		long start = 0;
+
+		if (csv.hasHeader() && tokenizer.next()) {
+
+			CsvTable.header(csv, tokenizer.record());
+
+			start = tokenizer.consumed();
+		}
+
+		//synthesise missing columns from first row, before chunks race to do it
+		if (csv.columns().isEmpty() && tokenizer.next())
+			CsvTable.synthesise(csv, tokenizer.fields());
+
+		if (CsvTable.projects(csv))
+			for (int i : CsvTable.selection(csv))
+				columns.add(csv.columns().get(i));
+
+		schema = new Schema(columns);
+
+		return start;
+	}
+
+
+	private void split(long start) throws Exception {
+
+		long size = channel.size()-start;
+
+		long chunk = Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, size / (csv.parallelism()*8)));
+
+		CsvIndex index = CsvIndex.load(csv,file).orElse(null);
+
+		if (index!=null) {
+			split(start,chunk,index);
+			return;
+		}
+
+		int chunks = (int) Math.max(1, (size+chunk-1)/chunk);
+
+		starts = new long[chunks+1];
+
+		for (int i=0; i<chunks; i++)
+			starts[i]=start+i*chunk;
+
+		starts[chunks]=channel.size();
+
+		//count quotes in all chunks in parallel
+		long[] quotes = pool.submit(() -> IntStream.range(0,chunks).parallel().mapToLong(this::quotes).toArray()).get();
+
+		quoted = new boolean[chunks+1];
+
+		for (int i=0; i<chunks; i++)
+			quoted[i+1] = quoted[i] ^ (quotes[i] % 2 == 1);
+	}
+
+
+	//splits at sampled rows, which are known record boundaries
+	private void split(long start, long chunk, CsvIndex index) throws IOException {
+
+		List<Long> boundaries = new ArrayList<>();
+
+		boundaries.add(start);
+
+		for (int i=0; i<index.samples(); i++)
+			if (index.sample(i)-boundaries.get(boundaries.size()-1)>=chunk)
+				boundaries.add(index.sample(i));
+
+		boundaries.add(channel.size());
+
+		starts = boundaries.stream().mapToLong(Long::longValue).toArray();
+		quoted = new boolean[starts.length];
+		exact = true;
+	}
+
+	@SneakyThrows
+	private long quotes(int chunk) {
+
+		byte quote = (byte) csv.quote();
+
+		InputStream in = new Range(starts[chunk],starts[chunk+1]);
+
+		byte[] buffer = new byte[MIN_CHUNK];
+
+		long count = 0;
+
+		for (int read = in.read(buffer); read>0; read = in.read(buffer))
+			for (int i=0; i<read; i++)
+				if (buffer[i]==quote)
+					count++;
+
+		return count;
+	}
+
+
+	//the offset of the first record that starts at or after the nominal start of a chunk
+	private long boundary(int chunk) throws IOException {
+
+		long end = starts[starts.length-1];
+
+		if (exact || chunk==0 || chunk==starts.length-1)
+			return starts[chunk];
+
+		//starts from previous byte, in case it ends a record
+		long offset = starts[chunk]-1;
+
+		InputStream in = new BufferedInputStream(new Range(offset,end),1024);
+
+		int b = in.read();
+
+		boolean inquotes = quoted[chunk] ^ (b == csv.quote());
+		boolean cr = false;
+
+		for (; b>=0; b=in.read(), offset++) {
+
+			if (cr)
+				return b=='\n' ? offset+1 : offset;
+
+			if (b==csv.quote())
+				inquotes=!inquotes;
+			else if (!inquotes && b=='\n')
+				return offset+1;
+			else if (!inquotes && b=='\r')
+				cr=true;
+		}
+
+		return end;
+	}
+
+
+	private List<Row> parse(int chunk) throws IOException {
+
+		long from = boundary(chunk);
+		long to = boundary(chunk+1);
+
+		if (from>=to)	//record spans the whole chunk
+			return emptyList();
+
+		Csv directives = csv.copy().hasHeader(false).readahead(0);
+
+		Callable<CsvTokenizer> tokenizer = csv.mapped() ? 
+				() -> new MappedCsvTokenizer(directives,file,from,to) : 
+				() -> new CsvTokenizer(directives,new Range(from,to));
+
+		return new CsvTable(directives,tokenizer,schema).stream().collect(toList());
+	}
+
+
+	///////////////////////////////////////////////////////////////////////////////////////////////////////
+
+
+	private class ChunkIterator implements Iterator<Row> {
+
+		private final boolean ordered = csv.ordered();
+		private final int chunks = starts.length-1;
+		private final int ahead = 2 * csv.parallelism();
+
+		//chunks in submission order
+		private final Deque<Future<List<Row>>> pending = new ArrayDeque<>();
+
+		//chunks in completion order
+		private final CompletionService<List<Row>> completed = new ExecutorCompletionService<>(pool);
+
+		private int submitted;
+		private int collected;
+
+		private Iterator<Row> current = emptyIterator();
+
+		@Override
+		public boolean hasNext() {
+
+			while (!current.hasNext()) {
+
+				if (collected==chunks) {
+					close();
+					return false;
+				}
+
+				current = take().iterator();
+			}
+
+			return true;
+		}
+
+		@Override
+		public Row next() {
+
+			if (!hasNext())
+				throw new NoSuchElementException();
+
+			return current.next();
+		}
+
+		private List<Row> take() {
+
+			while (submitted<chunks && submitted-collected<ahead) {
+
+				int chunk = submitted++;
+
+				Callable<List<Row>> task = () -> parse(chunk);
+
+				if (ordered)
+					pending.add(pool.submit(task));
+				else
+					completed.submit(task);
+			}
+
+			try {
+
+				Future<List<Row>> next = ordered ? pending.poll() : completed.take();
+
+				collected++;
+
+				return next.get();
+			}
+			catch (InterruptedException e) {
+				close();
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+			catch (ExecutionException e) {
+				close();
+				throw new RuntimeException("cannot parse csv file", e.getCause());
+			}
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+
+	//reads a range of the file, independently of other ranges
+	private class Range extends InputStream {
+
+		private long position;
+		private final long end;
+
+		Range(long start, long end) {
+			this.position=start;
+			this.end=end;
+		}
+
+		@Override
+		public int read() throws IOException {
+
+			byte[] b = new byte[1];
+
+			return read(b,0,1)<0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+
+			if (position>=end)
+				return -1;
+
+			int read = channel.read(ByteBuffer.wrap(b,off,(int) Math.min(len,end-position)),position);
+
+			if (read>0)
+				position+=read;
+
+			return read;
+		}
+	}
+}
@@ -0,0 +1,219 @@
+package smallgears.api.tabular.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import lombok.NonNull;
+import smallgears.api.tabular.Column;
+import smallgears.api.tabular.Csv;
+import smallgears.api.tabular.Row;
+
+/**
+ * Writes records of CSV data to a stream, encoding chunks of rows on multiple threads.
+ * <p>
+ * Rows are iterated over and grouped into chunks of {@link Csv#batch()} rows on the calling thread.
+ * Chunks are encoded by {@link Csv#parallelism()} threads with {@link CsvWriter}s, and their bytes are appended to the stream in order, again on the calling thread.
+ * The output is the same as that of a single {@link CsvWriter}.
+ * <p>
+ * At most a few chunks per thread are in flight: iteration blocks when encoding falls behind.
+ * Rows must not change while they are written.
+ * <p>
+ * Only UTF-8 and single-byte encodings are supported, as other encodings may not be split at arbitrary records.
+ */
+public class ParallelCsvWriter implements Closeable {
+
+	private final Csv csv;
+
+	private final OutputStream stream;
+
+	private final ExecutorService workers;
+
+	//per thread, over a reusable buffer
+	private final ThreadLocal<Encoder> encoders;
+
+	//in order of submission
+	private final Deque<Future<byte[]>> chunks = new ArrayDeque<>();
+
+	private final int window;
+
+	private boolean closed;
+
+	/**
+	 * Returns <code>true</code> if given directives can be applied by this writer.
+	 * <p>
+	 * Chunks can be encoded independently only in UTF-8 and single-byte encodings.
+	 */
+	public static boolean supports(@NonNull Csv csv) {
+
+		return csv.parallelism()>1 && csv.batch()>0 && CsvTokenizer.bytewise(Charset.forName(csv.encoding()));
+	}
+
+	/**
+	 * Creates an instance over a given stream.
+	 *
+	 * @throws IllegalArgumentException if the directives are not {@link #supports(Csv) supported}
+	 */
+	public ParallelCsvWriter(@NonNull Csv csv, @NonNull OutputStream stream) {
+
+		if (!supports(csv))
+			throw new IllegalArgumentException("invalid csv directives: cannot write "+csv.batch()+" rows at a time on "+csv.parallelism()+" threads in "+csv.encoding());
+
+		this.csv=csv;
+		this.stream=stream;
+		this.window=2*csv.parallelism();
+
+		this.workers = Executors.newFixedThreadPool(csv.parallelism(),r->{
+
+			Thread thread = new Thread(r,"csv-writer");
+
+			thread.setDaemon(true);
+
+			return thread;
+		});
+
+		this.encoders = ThreadLocal.withInitial(Encoder::new);
+	}
+
+	/**
+	 * Writes the names of given columns as a record.
+	 */
+	public ParallelCsvWriter header(@NonNull List<Column> columns) throws IOException {
+
+		return submit(e -> e.writer.header(columns));
+	}
+
+	/**
+	 * Writes the values of given rows for given columns as records.
+	 */
+	public ParallelCsvWriter rows(@NonNull Iterable<Row> rows, @NonNull List<Column> columns) throws IOException {
+
+		List<Row> chunk = new ArrayList<>(csv.batch());
+
+		for (Row row : rows) {
+
+			chunk.add(row);
+
+			if (chunk.size()==csv.batch()) {
+
+				submit(chunk,columns);
+
+				chunk = new ArrayList<>(csv.batch());
+			}
+		}
+
+		if (!chunk.isEmpty())
+			submit(chunk,columns);
+
+		return this;
+	}
+
+	/**
+	 * Writes all pending chunks to the stream, and flushes it.
+	 */
+	public void flush() throws IOException {
+
+		while (!chunks.isEmpty())
+			stream.write(next());
+
+		stream.flush();
+	}
+
+	/**
+	 * Writes all pending chunks, then closes the stream.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (closed)
+			return;
+
+		closed=true;
+
+		try {
+			flush();
+		}
+		finally {
+
+			workers.shutdownNow();
+
+			stream.close();
+		}
+	}
+
+
+	//////////////////////////////////////////////////////////////////////////////////////////////
+
+
+	private static interface Task {
+
+		void encode(Encoder encoder) throws IOException;
+	}
+
+	private class Encoder {
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(CsvWriter.BUFFER_SIZE);
+
+		final CsvWriter writer = new CsvWriter(csv,bytes);
+	}
+
+	private void submit(List<Row> chunk, List<Column> columns) throws IOException {
+
+		submit(e -> {
+
+			for (Row row : chunk)
+				e.writer.row(row,columns);
+		});
+	}
+
+	private ParallelCsvWriter submit(Task task) throws IOException {
+
+		chunks.add(workers.submit(() -> {
+
+			Encoder encoder = encoders.get();
+
+			encoder.bytes.reset();
+
+			task.encode(encoder);
+
+			encoder.writer.flush();
+
+			return encoder.bytes.toByteArray();
+		}));
+
+		//bounds memory and surfaces failures early
+		while (chunks.size()>window)
+			stream.write(next());
+
+		return this;
+	}
+
+	private byte[] next() throws IOException {
+
+		try {
+			return chunks.remove().get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while writing");
+		}
+		catch(ExecutionException e) {
+
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+	}
+}
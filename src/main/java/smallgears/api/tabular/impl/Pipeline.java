@@ -0,0 +1,304 @@
+package smallgears.api.tabular.impl;
+
+import static java.lang.String.*;
+import static java.util.stream.Collectors.*;
+import static smallgears.api.tabular.dsl.Tables.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import smallgears.api.tabular.Column;
+import smallgears.api.tabular.Row;
+import smallgears.api.tabular.Schema;
+import smallgears.api.tabular.Table;
+
+/**
+ * A streamed {@link Table} that maps, filters, projects, and limits the rows of another, lazily and in a single pass.
+ * <p>
+ * Steps accumulate without wrapping iterators, and apply to each row in turn when the table is iterated.
+ * Projections and limits that precede other steps are pushed down to sources that can honour them, like {@link CsvTable}s:
+ * values outside the projection are not decoded, and rows beyond the limit are not parsed.
+ * <p>
+ * Unless projected, the table shares the individual columns of its source, but collects them independently,
+ * as does every step: adding or removing columns from one table has no effect on the others.
+ *
+ * @see #plan()
+ */
+public class Pipeline extends AbstractTable {
+
+	private final Table source;
+
+	private final List<Step> steps;
+
+
+	public Pipeline(@NonNull Table source) {
+
+		this(source,new ArrayList<>(source.columns()),new ArrayList<>());
+	}
+
+	private Pipeline(Table source, List<Column> columns, List<Step> steps) {
+
+		super(columns);
+
+		this.source=source;
+		this.steps=steps;
+	}
+
+
+	@Override
+	public Pipeline map(@NonNull UnaryOperator<Row> transform) {
+
+		return then(columns, new Step(Kind.MAP, "map", transform, null, null, 0));
+	}
+
+	/**
+	 * Maps the rows of this table, in the same pass as other steps.
+	 */
+	@Override
+	public Pipeline with(@NonNull UnaryOperator<Row> transform) {
+
+		return map(transform);
+	}
+
+	@Override
+	public Pipeline filter(@NonNull Predicate<? super Row> filter) {
+
+		return then(columns, new Step(Kind.FILTER, "filter", null, filter, null, 0));
+	}
+
+	@Override
+	public Pipeline project(@NonNull String ... names) {
+
+		List<Column> projected = new ArrayList<>();
+
+		for (String name : names)
+			projected.add(columns.stream().filter(c->c.name().equals(name)).findFirst().orElse(col(name)));
+
+		return then(projected, new Step(Kind.PROJECT, "project "+projected.stream().map(Column::name).collect(toList()), null, null, new Schema(projected), 0));
+	}
+
+	@Override
+	public Pipeline limit(long rows) {
+
+		if (rows<0)
+			throw new IllegalArgumentException("invalid limit "+rows);
+
+		return then(columns, new Step(Kind.LIMIT, "limit "+rows, null, null, null, rows));
+	}
+
+	/**
+	 * Returns a description of how this table is computed, one step per line, from its source.
+	 */
+	public String plan() {
+
+		Pushdown pushdown = pushdown();
+
+		StringBuilder $ = new StringBuilder(source.getClass().getSimpleName());
+
+		if (pushdown.supported) {
+
+			List<String> pushed = new ArrayList<>();
+
+			pushdown.projection.ifPresent(s->pushed.add("project "+s.names()));
+
+			if (pushdown.limit<Long.MAX_VALUE)
+				pushed.add("limit "+pushdown.limit);
+
+			if (!pushed.isEmpty())
+				$.append(" ").append(pushed);
+		}
+
+		for (Step step : steps)
+			$.append(format("%n  %s%s",step.label,pushdown.supported && pushdown.pushed(step) ? " (pushed down)" : ""));
+
+		return $.toString();
+	}
+
+	@Override
+	public Iterator<Row> iterator() {
+
+		Pushdown pushdown = pushdown();
+
+		if (pushdown.supported)
+			((CsvTable) source).pushdown(pushdown.projection.map(Schema::names).orElse(null), pushdown.limit);
+
+		//steps to apply, and remaining rows per limit
+		Step[] active = steps.toArray(new Step[0]);
+		long[] remaining = steps.stream().mapToLong(s->s.limit).toArray();
+
+		Iterator<Row> rows = source.iterator();
+
+		return new Iterator<Row>() {
+
+			Row next;
+			boolean done;
+
+			@Override
+			public boolean hasNext() {
+
+				while (next==null && !done && rows.hasNext())
+					next = apply(rows.next());
+
+				return next!=null;
+			}
+
+			@Override
+			public Row next() {
+
+				if (!hasNext())
+					throw new NoSuchElementException();
+
+				Row current = next;
+
+				next=null;
+
+				return current;
+			}
+
+			//applies all steps, or returns null if the row is filtered out
+			private Row apply(Row row) {
+
+				for (int i=0; i<active.length && row!=null; i++) {
+
+					Step step = active[i];
+
+					switch(step.kind) {
+
+						case MAP:
+							row = step.transform.apply(row);
+							break;
+
+						case FILTER:
+							if (!step.filter.test(row))
+								row=null;
+							break;
+
+						case PROJECT:
+							row = project(step.schema,row);
+							break;
+
+						case LIMIT:
+							//no row passes a limit after the last one it lets through
+							if (remaining[i]==0) {
+								done=true;
+								row=null;
+							}
+							else if (--remaining[i]==0)
+								done=true;
+							break;
+					}
+				}
+
+				return row;
+			}
+		};
+	}
+
+	@Override
+	public Schema schema() {
+
+		//rows take the shape of the last projection, unless a map follows it
+		for (int i=steps.size()-1; i>=0; i--)
+			if (steps.get(i).kind==Kind.PROJECT)
+				return steps.get(i).schema;
+			else if (steps.get(i).kind==Kind.MAP)
+				return null;
+
+		return source.schema();
+	}
+
+
+	//////////////////////////////////////////////////////////////////////////////////////////////
+
+
+	private Pipeline then(List<Column> columns, Step step) {
+
+		List<Step> next = new ArrayList<>(steps);
+
+		next.add(step);
+
+		return new Pipeline(source,new ArrayList<>(columns),next);
+	}
+
+	private static Row project(Schema schema, Row row) {
+
+		String[] values = new String[schema.size()];
+
+		for (int i=0; i<values.length; i++)
+			values[i] = row.get(schema.names().get(i));
+
+		return schema.row(values);
+	}
+
+	//projection and limit that can be pushed to the source
+	private Pushdown pushdown() {
+
+		Pushdown pushdown = new Pushdown(source instanceof CsvTable);
+
+		boolean shaped=false;
+
+		for (Step step : steps)
+			switch(step.kind) {
+
+				case MAP:
+					shaped=true;
+					break;
+
+				case FILTER:
+					return pushdown;
+
+				case PROJECT:
+					if (!shaped && !pushdown.projection.isPresent()) {
+						pushdown.projection = Optional.of(step.schema);
+						pushdown.projector = step;
+					}
+					break;
+
+				case LIMIT:
+					if (step.limit<pushdown.limit) {
+						pushdown.limit = step.limit;
+						pushdown.limiter = step;
+					}
+					break;
+			}
+
+		return pushdown;
+	}
+
+	enum Kind { MAP, FILTER, PROJECT, LIMIT }
+
+	@RequiredArgsConstructor
+	private static class Step {
+
+		final Kind kind;
+		final String label;
+
+		final UnaryOperator<Row> transform;
+		final Predicate<? super Row> filter;
+		final Schema schema;
+		final long limit;
+	}
+
+	@RequiredArgsConstructor
+	private static class Pushdown {
+
+		final boolean supported;
+
+		Optional<Schema> projection = Optional.empty();
+		Step projector;
+
+		long limit = Long.MAX_VALUE;
+		Step limiter;
+
+		boolean pushed(Step step) {
+			return step==projector || step==limiter;
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package smallgears.api.tabular.impl;
+
+import static java.util.concurrent.TimeUnit.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * An {@link Iterator} that consumes another on a producer thread, ahead of its own consumers.
+ * <p>
+ * Elements are passed over in batches through a bounded queue. When the queue stays full for a while, the producer stops waiting:
+ * it keeps the batch aside and returns its thread to a shared pool, and consumers resume it as they take batches.
+ * So an iteration that consumers abandon without {@link #close()}, e.g. after <code>findFirst()</code>, holds no thread.
+ * <p>
+ * Failures of the producer surface to consumers when they reach them, and {@link #close()} stops the producer early and releases the source.
+ * <p>
+ * The producer starts on first access, so the source may be reconfigured until then.
+ */
+@Slf4j
+class ReadAhead<T> implements Iterator<T>, AutoCloseable {
+
+	//end of elements
+	private static final List<Object> END = new ArrayList<>();
+
+	//before the producer returns its thread, in milliseconds
+	private static final long PATIENCE = 100;
+
+	//idle threads expire
+	private static final ExecutorService producers = Executors.newCachedThreadPool(r->{
+
+		Thread thread = new Thread(r,"read-ahead");
+
+		thread.setDaemon(true);
+
+		return thread;
+	});
+
+	private final Iterator<T> source;
+	private final Runnable release;
+
+	private final int batch;
+	private final BlockingQueue<Object> queue;
+
+	private final String name;
+
+	//guards the state of the producer
+	private final Object lock = new Object();
+
+	//scheduled or running
+	private boolean running;
+
+	//reached the end or failed, or stopped
+	private boolean finished;
+
+	private boolean closed;
+
+	//batch, end or failure that did not fit in the queue
+	private Object held;
+
+	private boolean started;
+
+	private Iterator<T> current;
+
+	private boolean done;
+
+	/**
+	 * Creates an instance over a given source, with a given depth and batch size.
+	 *
+	 * @param release releases the resources of the source, when the producer stops before the end
+	 */
+	ReadAhead(Iterator<T> source, int depth, int batch, String name, Runnable release) {
+
+		if (depth<1 || batch<1)
+			throw new IllegalArgumentException("invalid read-ahead of "+depth+" batches of "+batch);
+
+		this.source=source;
+		this.release=release;
+		this.batch=batch;
+		this.queue=new ArrayBlockingQueue<>(depth);
+		this.name=name;
+	}
+
+	@Override
+	public boolean hasNext() {
+
+		if (current!=null && current.hasNext())
+			return true;
+
+		if (done)
+			return false;
+
+		if (!started) {
+			started=true;
+			resume();
+		}
+
+		Object next = take();
+
+		if (next instanceof Throwable) {
+
+			done=true;
+
+			if (next instanceof RuntimeException)
+				throw (RuntimeException) next;
+
+			if (next instanceof Error)
+				throw (Error) next;
+
+			throw new IllegalStateException("cannot read ahead",(Throwable) next);
+		}
+
+		if (next==END) {
+			done=true;
+			return false;
+		}
+
+		@SuppressWarnings("unchecked")
+		List<T> elements = (List<T>) next;
+
+		current = elements.iterator();
+
+		return true;
+	}
+
+	@Override
+	public T next() {
+
+		if (!hasNext())
+			throw new NoSuchElementException();
+
+		return current.next();
+	}
+
+	/**
+	 * Stops the producer, if it has not finished already, and releases the source.
+	 */
+	@Override
+	public void close() {
+
+		done=true;
+		current=null;
+
+		boolean idle;
+
+		synchronized (lock) {
+
+			if (closed)
+				return;
+
+			closed=true;
+
+			//a running producer releases the source itself
+			idle = !running && !finished;
+
+			finished=true;
+		}
+
+		if (idle)
+			release.run();
+	}
+
+
+	//////////////////////////////////////////////////////////////////////////////////////////////
+
+
+	private Object take() {
+
+		try {
+
+			Object next = queue.take();
+
+			//there is room now
+			resume();
+
+			return next;
+		}
+		catch(InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+
+			close();
+
+			throw new IllegalStateException("interrupted while reading ahead",e);
+		}
+	}
+
+	private void resume() {
+
+		synchronized (lock) {
+
+			if (running || finished)
+				return;
+
+			running=true;
+		}
+
+		producers.execute(this::produce);
+	}
+
+	//until the queue is full, the source ends or fails, or consumers close
+	private void produce() {
+
+		while (true) {
+
+			Object next;
+
+			synchronized (lock) {
+				next=held;
+				held=null;
+			}
+
+			if (next==null)
+				next = read();
+
+			boolean last = next==END || next instanceof Throwable;
+
+			boolean offered = offer(next);
+
+			synchronized (lock) {
+
+				if (closed) {
+
+					running=false;
+
+					log.debug("read-ahead {} stopped by consumer",name);
+
+					if (!last)
+						release.run();
+
+					return;
+				}
+
+				//consumers resume the producer only once it has stopped
+				if (!offered && !queue.offer(next)) {
+					held=next;
+					running=false;
+					return;
+				}
+
+				if (last) {
+					running=false;
+					finished=true;
+					return;
+				}
+			}
+		}
+	}
+
+	private boolean offer(Object next) {
+
+		try {
+			return queue.offer(next,PATIENCE,MILLISECONDS);
+		}
+		catch(InterruptedException e) {
+			return false;
+		}
+	}
+
+	//a batch, the end, or a failure
+	private Object read() {
+
+		try {
+
+			if (!source.hasNext())
+				return END;
+
+			List<T> elements = new ArrayList<>(batch);
+
+			while (elements.size()<batch && source.hasNext())
+				elements.add(source.next());
+
+			return elements;
+		}
+		catch(Throwable t) {
+
+			release.run();
+
+			return t;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package smallgears.api.tabular.impl;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import lombok.NonNull;
+import lombok.SneakyThrows;
+import smallgears.api.tabular.Row;
+import smallgears.api.tabular.Schema;
+import smallgears.api.tabular.Table;
+
+/**
+ * A {@link Table} that can be iterated over multiple times without holding its rows, because it obtains them anew from its source on each iteration.
+ * <p>
+ * Typically, the source parses a file: each iteration re-opens and re-parses it, in constant memory.
+ * The first iteration reuses the table obtained to learn the columns.
+ * <p>
+ * Each iteration has a source of its own, so iterations can be nested or interleaved.
+ * A source is released when its iteration is exhausted, or else when this table is {@link #close() closed}.
+ *
+ * @see smallgears.api.tabular.dsl.Dsl.SourceClause#replay(java.nio.file.Path)
+ */
+public class ReplayableTable extends AbstractTable implements AutoCloseable {
+
+	private final Supplier<? extends Table> source;
+
+	//of latest iteration
+	private Table current;
+
+	//of iterations not yet exhausted
+	private final Set<Table> open = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	//not yet iterated
+	private boolean fresh = true;
+
+	public ReplayableTable(@NonNull Supplier<? extends Table> source) {
+
+		this(source,source.get());
+	}
+
+	private ReplayableTable(Supplier<? extends Table> source, Table first) {
+
+		super(first.columns());
+
+		this.source=source;
+		this.current=first;
+	}
+
+	@Override
+	public Iterator<Row> iterator() {
+
+		Table table = fresh ? current : source.get();
+
+		fresh=false;
+		current=table;
+
+		open.add(table);
+
+		Iterator<Row> rows = table.iterator();
+
+		return new Iterator<Row>() {
+
+			@Override
+			public boolean hasNext() {
+
+				boolean more = rows.hasNext();
+
+				if (!more)
+					release(table);
+
+				return more;
+			}
+
+			@Override
+			public Row next() {
+				return rows.next();
+			}
+		};
+	}
+
+	@Override
+	public boolean replayable() {
+		return true;
+	}
+
+	@Override
+	public Schema schema() {
+		return current.schema();
+	}
+
+	/**
+	 * Releases the sources of all iterations that are not exhausted, if they require it.
+	 */
+	@Override
+	public void close() {
+
+		if (fresh)
+			open.add(current);
+
+		fresh=false;
+
+		for (Table table : open.toArray(new Table[0]))
+			release(table);
+	}
+
+
+	//////////////////////////////////////////////////////////////////////////////////////////////
+
+
+	@SneakyThrows
+	private void release(Table table) {
+
+		if (open.remove(table) && table instanceof AutoCloseable)
+			((AutoCloseable) table).close();
+	}
+}
@@ -2,14 +2,22 @@ package smallgears.api.tabular.impl;
 
 import static java.util.Arrays.*;
 import static java.util.stream.Collectors.*;
+import static smallgears.api.tabular.operations.Indexes.*;
+import static smallgears.api.tabular.utils.TableUtils.*;
 
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import smallgears.api.tabular.Column;
 import smallgears.api.tabular.Row;
+import smallgears.api.tabular.Schema;
 import smallgears.api.tabular.Table;
+import smallgears.api.tabular.operations.Indexes;
 import smallgears.api.tabular.utils.MaterialisedTable;
 import lombok.EqualsAndHashCode;
 import lombok.NonNull;
@@ -17,19 +25,26 @@ import lombok.ToString;
 
 /**
  * A {@link Table} that materialises its elements and can be iterated over multiple times.
- * 
+ * <p>
+ * If the table has columns, its rows are bound in place to a {@link Schema} of the columns as they are added.
+ * Rows already bound to an equivalent schema keep theirs, and share it with the others.
  */
-@ToString(callSuper=true) //can actually print value as table is materialised
-@EqualsAndHashCode(callSuper=true)
+@ToString(callSuper=true, exclude={"schema","indexes"}) //can actually print value as table is materialised
+@EqualsAndHashCode(callSuper=true, exclude={"schema","indexes"})
 public class SimpleTable extends AbstractTable implements MaterialisedTable {
 
 	private final List<Row> rows = new ArrayList<Row>();
+	
+	//on first row
+	private Schema schema;
+	
+	private final Indexes indexes = new Indexes(this);
 
 	public SimpleTable(List<Column> columns, @NonNull Iterable<Row> rows) {
 		
 		super(columns);
 		
-		rows.forEach(r->this.rows.add(r));
+		rows.forEach(r->this.rows.add(adopt(r)));
 	}
 	
 	/**
@@ -41,9 +56,46 @@ public class SimpleTable extends AbstractTable implements MaterialisedTable {
 	}
 	
 	
+	/**
+	 * Returns an iterator over the rows of this table.
+	 * <p>
+	 * Removing rows through the iterator makes indexes stale, as they would be searched once per removal.
+	 */
 	@Override
 	public Iterator<Row> iterator() {
-		return rows.iterator();
+		
+		Iterator<Row> it = rows.iterator();
+		
+		return new Iterator<Row>() {
+			
+			@Override
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+			
+			@Override
+			public Row next() {
+				return it.next();
+			}
+			
+			@Override
+			public void remove() {
+				
+				it.remove();
+				
+				indexes.invalidate();
+			}
+			
+			@Override
+			public void forEachRemaining(Consumer<? super Row> action) {
+				it.forEachRemaining(action);
+			}
+		};
+	}
+	
+	@Override
+	public Spliterator<Row> spliterator() {
+		return rows.spliterator();
 	}
 	
 	@Override
@@ -55,15 +107,47 @@ public class SimpleTable extends AbstractTable implements MaterialisedTable {
 	@Override
 	public MaterialisedTable add(Iterable<Row> rows) {
 		
-		rows.forEach(r->this.rows.add(r));
+		int from = this.rows.size();
+		
+		rows.forEach(r->this.rows.add(adopt(r)));
+		
+		indexes.added(this.rows.subList(from,this.rows.size()));
 		
 		return this;
 	}
 	
+	/**
+	 * Removes rows from this table, in a single pass.
+	 * <p>
+	 * As for lists, each row removes the first equal row that has not been removed already.
+	 */
 	@Override
 	public MaterialisedTable remove(Iterable<Row> rows) {
 		
-		rows.forEach(r->this.rows.remove(r));
+		return removeIf(occurrences(rows));
+	}
+	
+	@Override
+	public MaterialisedTable removeIf(@NonNull Predicate<? super Row> filter) {
+		
+		if (!indexes.active()) {
+			rows.removeIf(filter);
+			return this;
+		}
+		
+		Set<Row> removed = identities();
+		
+		rows.removeIf(r -> {
+			
+			boolean match = filter.test(r);
+			
+			if (match)
+				removed.add(r);
+			
+			return match;
+		});
+		
+		indexes.removed(removed);
 		
 		return this;
 	}
@@ -80,4 +164,39 @@ public class SimpleTable extends AbstractTable implements MaterialisedTable {
 		return rows.size();
 	}
 	
+	/**
+	 * Returns the indexes of this table, which follow rows as they are added and removed, and become stale when rows are removed through {@link #iterator()}.
+	 */
+	@Override
+	public Indexes indexes() {
+		return indexes;
+	}
+	
+	
+	@Override
+	public Schema schema() {
+		
+		if (schema==null && !columns.isEmpty())
+			schema = new Schema(columns);
+		
+		return schema;
+	}
+	
+	
+	private Row adopt(Row row) {
+		
+		if (columns.isEmpty())
+			return row;
+		
+		if (schema==null) {
+			
+			schema = new Schema(columns);
+			
+			if (row.schema()!=null && row.schema().names().equals(schema.names()))
+				schema = row.schema();
+		}
+		
+		return schema.adopt(row);
+	}
+	
 }
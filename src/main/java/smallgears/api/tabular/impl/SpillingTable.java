@@ -0,0 +1,517 @@
+package smallgears.api.tabular.impl;
+
+import static java.nio.charset.StandardCharsets.*;
+import static java.nio.file.StandardOpenOption.*;
+import static java.util.Arrays.*;
+import static java.util.Collections.*;
+import static java.util.stream.Collectors.*;
+import static smallgears.api.tabular.utils.TableUtils.*;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import lombok.NonNull;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import smallgears.api.tabular.Column;
+import smallgears.api.tabular.Row;
+import smallgears.api.tabular.Table;
+import smallgears.api.tabular.operations.Indexes;
+import smallgears.api.tabular.utils.MaterialisedTable;
+
+/**
+ * A {@link Table} that materialises its elements in memory up to a budget, and on disk beyond it.
+ * <p>
+ * Rows within the budget are kept as they are added. Further rows are encoded in a temporary file, and decoded on iteration:
+ * they are read-only copies, so changing their values, e.g. with {@link Row#set(String, Object)} or the default merge of joins,
+ * throws an {@link UnsupportedOperationException} rather than being lost.
+ * <p>
+ * Iterations read the file a block at a time, and hold no file open in between, so they can be abandoned at any point.
+ * The file is deleted on {@link #close()}, after which the table can no longer be used.
+ *
+ * @see #budget(long)
+ */
+@Slf4j
+public class SpillingTable extends AbstractTable implements MaterialisedTable, AutoCloseable {
+
+	//rough heap cost of a row, an entry, and a character
+	static final int ROW_COST = 64;
+	static final int ENTRY_COST = 80;
+	static final int CHAR_COST = 2;
+
+	static final int BUFFER_SIZE = 1 << 16;
+
+	private final long budget;
+
+	private final List<Row> rows = new ArrayList<>();
+
+	//estimated heap cost of rows
+	private long used;
+
+	//column names in file, by code
+	private final List<String> names = new ArrayList<>();
+	private final Map<String,Integer> codes = new HashMap<>();
+
+	//created on first spill
+	private Path file;
+	private DataOutputStream out;
+
+	//rows in file, including removed ones
+	private int spilled;
+	private final BitSet removed = new BitSet();
+
+	//rows are read anew from disk, so indexes cannot follow changes
+	private final Indexes indexes = new Indexes(this);
+
+	private boolean closed;
+
+
+	/**
+	 * Returns a materialised form that spills to disk beyond a given number of bytes, e.g. <code>materialise(budget(1<<30))</code>.
+	 * <p>
+	 * Rows beyond the budget are read back as read-only copies.
+	 */
+	public static Function<Table,MaterialisedTable> budget(long bytes) {
+
+		return table -> new SpillingTable(table.columns(),table,bytes);
+	}
+
+	public SpillingTable(List<Column> columns, @NonNull Iterable<Row> rows, long budget) {
+
+		super(columns);
+
+		if (budget<0)
+			throw new IllegalArgumentException("invalid budget "+budget);
+
+		this.budget=budget;
+
+		add(rows);
+	}
+
+
+	@Override
+	public Iterator<Row> iterator() {
+
+		open();
+
+		Iterator<Row> memory = rows.iterator();
+
+		if (spilled==0)
+			return memory;
+
+		Iterator<Row> disk = new Spilled();
+
+		return new Iterator<Row>() {
+
+			@Override
+			public boolean hasNext() {
+				return memory.hasNext() || disk.hasNext();
+			}
+
+			@Override
+			public Row next() {
+
+				//rows in memory are gone with the table
+				open();
+
+				return memory.hasNext() ? memory.next() : disk.next();
+			}
+		};
+	}
+
+	/**
+	 * Returns a sized spliterator, which splits off rows in memory and on disk alike.
+	 */
+	@Override
+	public Spliterator<Row> spliterator() {
+
+		open();
+
+		return spilled==0 ? rows.spliterator() : Spliterators.spliterator(iterator(),size(),Spliterator.ORDERED);
+	}
+
+	@Override
+	public MaterialisedTable add(Row ... rows) {
+
+		return add(asList(rows));
+	}
+
+	@Override
+	public MaterialisedTable add(Iterable<Row> rows) {
+
+		open();
+
+		for (Row row : rows) {
+
+			long cost = cost(row);
+
+			if (file==null && used+cost<=budget) {
+				this.rows.add(row);
+				used+=cost;
+			}
+			else
+				spill(row);
+		}
+
+		indexes.invalidate();
+
+		return this;
+	}
+
+	@Override
+	public MaterialisedTable remove(Row... rows) {
+
+		return remove(asList(rows));
+	}
+
+	/**
+	 * Removes rows from this table, in a single pass.
+	 * <p>
+	 * As for lists, each row removes the first equal row that has not been removed already.
+	 */
+	@Override
+	public MaterialisedTable remove(Iterable<Row> rows) {
+
+		return removeIf(occurrences(rows));
+	}
+
+	/**
+	 * Removes the rows of this table that satisfy a given predicate, in a single pass.
+	 * <p>
+	 * The space of removed rows on disk is not reclaimed.
+	 */
+	@Override
+	public MaterialisedTable removeIf(@NonNull Predicate<? super Row> filter) {
+
+		open();
+
+		this.rows.removeIf(row -> {
+
+			boolean match = filter.test(row);
+
+			if (match)
+				used-=cost(row);
+
+			return match;
+		});
+
+		if (spilled>0) {
+
+			Spilled it = new Spilled();
+
+			while (it.hasNext())
+				if (filter.test(it.next()))
+					removed.set(it.returned);
+		}
+
+		indexes.invalidate();
+
+		return this;
+	}
+
+	@Override
+	public int size() {
+		return rows.size()+spilled-removed.cardinality();
+	}
+
+	/**
+	 * Returns the indexes of this table, which become stale when rows are added or removed.
+	 */
+	@Override
+	public Indexes indexes() {
+		return indexes;
+	}
+
+	/**
+	 * Returns the number of rows this table keeps on disk.
+	 */
+	public int spilled() {
+		return spilled-removed.cardinality();
+	}
+
+	/**
+	 * Returns the estimated heap cost of a row, as charged against budgets.
+	 */
+	public static long cost(@NonNull Row row) {
+
+		long[] cost = {ROW_COST};
+
+		row.forEach((col,val) -> cost[0] += ENTRY_COST + CHAR_COST*(col.length()+(val==null?0:val.length())));
+
+		return cost[0];
+	}
+
+	/**
+	 * Deletes the file of this table.
+	 */
+	@Override
+	@SneakyThrows
+	public void close() {
+
+		if (closed)
+			return;
+
+		closed=true;
+
+		rows.clear();
+
+		if (file!=null) {
+			out.close();
+			Files.deleteIfExists(file);
+		}
+	}
+
+
+	@Override
+	public boolean equals(Object other) {
+
+		return other instanceof SpillingTable && super.equals(other) && rows().equals(((SpillingTable) other).rows());
+	}
+
+	@Override
+	public int hashCode() {
+
+		return 31*super.hashCode()+rows().hashCode();
+	}
+
+
+	//////////////////////////////////////////////////////////////////////////////////////////////
+
+
+	private List<Row> rows() {
+
+		return stream().collect(toList());
+	}
+
+	private void open() {
+
+		if (closed)
+			throw new IllegalStateException("table is closed");
+	}
+
+	//  record: entries, then (column code, value length, value bytes) per entry
+	//  new column names are inlined on first use, with code -1 followed by (name length, name bytes)
+
+	@SneakyThrows
+	private void spill(Row row) {
+
+		if (file==null) {
+
+			file = Files.createTempFile("tabular",".spill");
+
+			out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file),BUFFER_SIZE));
+
+			log.debug("spilling rows beyond {} to {}",rows.size(),file);
+		}
+
+		List<String> cols = new ArrayList<>();
+		List<byte[]> vals = new ArrayList<>();
+
+		row.forEach((col,val) -> {
+
+			if (val!=null) {
+				cols.add(col);
+				vals.add(val.getBytes(UTF_8));
+			}
+		});
+
+		out.writeInt(cols.size());
+
+		for (int i=0; i<cols.size(); i++) {
+
+			Integer code = codes.get(cols.get(i));
+
+			if (code==null) {
+
+				codes.put(cols.get(i),names.size());
+				names.add(cols.get(i));
+
+				byte[] name = cols.get(i).getBytes(UTF_8);
+
+				out.writeInt(-1);
+				out.writeInt(name.length);
+				out.write(name);
+			}
+			else
+				out.writeInt(code);
+
+			out.writeInt(vals.get(i).length);
+			out.write(vals.get(i));
+		}
+
+		spilled++;
+	}
+
+	//decodes the rows in file, reading a block at a time
+	private class Spilled implements Iterator<Row> {
+
+		//decoded up to position, with the file position of its end
+		ByteBuffer block = ByteBuffer.allocate(BUFFER_SIZE);
+		long end;
+
+		//names in the order they were inlined
+		final List<String> inlined = new ArrayList<>();
+
+		//index of next row, and of last returned
+		int index = -1;
+		int returned = -1;
+
+		Row next;
+
+		Spilled() {
+
+			block.flip();
+
+			advance();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next!=null;
+		}
+
+		@Override
+		public Row next() {
+
+			if (!hasNext())
+				throw new NoSuchElementException();
+
+			Row current = next;
+
+			returned = index;
+
+			advance();
+
+			return current;
+		}
+
+		//reads up to next row that has not been removed
+		private void advance() {
+
+			int current = index;
+
+			next = null;
+
+			while (next==null && current+1<spilled) {
+
+				Row row = read();
+
+				current++;
+
+				if (!removed.get(current))
+					next = row;
+			}
+
+			index = current;
+		}
+
+		//reads further blocks if the row is not whole in this one
+		private Row read() {
+
+			while (true) {
+
+				int names = inlined.size();
+
+				block.mark();
+
+				try {
+					return decode();
+				}
+				catch(BufferUnderflowException e) {
+
+					block.reset();
+
+					inlined.subList(names,inlined.size()).clear();
+
+					refill();
+				}
+			}
+		}
+
+		//from the file, opened for the purpose
+		@SneakyThrows
+		private void refill() {
+
+			open();
+
+			out.flush();
+
+			block.compact();
+
+			//larger than a block
+			if (!block.hasRemaining()) {
+
+				ByteBuffer larger = ByteBuffer.allocate(2*block.capacity());
+
+				block.flip();
+
+				block = larger.put(block);
+			}
+
+			int read = 0;
+
+			try (FileChannel channel = FileChannel.open(file,READ)) {
+
+				for (int n; block.hasRemaining() && (n = channel.read(block,end))>0; end+=n)
+					read+=n;
+			}
+
+			block.flip();
+
+			if (read==0)
+				throw new IllegalStateException("spill file "+file+" is truncated");
+		}
+
+		private Row decode() {
+
+			int entries = block.getInt();
+
+			Map<String,String> values = new HashMap<>();
+
+			for (int i=0; i<entries; i++) {
+
+				int code = block.getInt();
+
+				String name = code<0 ? string() : inlined.get(code);
+
+				if (code<0)
+					inlined.add(name);
+
+				values.put(name,string());
+			}
+
+			return new Row(unmodifiableMap(values));
+		}
+
+		//length, then bytes
+		private String string() {
+
+			int length = block.getInt();
+
+			if (block.remaining()<length)
+				throw new BufferUnderflowException();
+
+			String string = new String(block.array(),block.arrayOffset()+block.position(),length,UTF_8);
+
+			block.position(block.position()+length);
+
+			return string;
+		}
+	}
+}
@@ -6,6 +6,8 @@ import java.util.Map;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import smallgears.api.tabular.Compression;
+
 //mirror directive's object hierarchy to mix in binding annotations for json
 public class Mixins {
 
@@ -16,7 +18,16 @@ public class Mixins {
 		@JsonProperty String encoding;
 		@JsonProperty int rows;
 		@JsonProperty char quote;
+		@JsonProperty int parallelism;
+		@JsonProperty boolean ordered;
+		@JsonProperty boolean mapped;
+		@JsonProperty long offset;
+		@JsonProperty int readahead;
+		@JsonProperty int batch;
+		@JsonProperty Compression compression;
 		@JsonProperty List<Column> columns;
+		@JsonProperty List<String> projection;
+		@JsonProperty List<Integer> positions;
 	}
 	
 	static class Column {
@@ -0,0 +1,314 @@
+package smallgears.api.tabular.operations;
+
+import static java.util.Collections.*;
+import static smallgears.api.tabular.impl.SpillingTable.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import lombok.extern.slf4j.Slf4j;
+import smallgears.api.tabular.Row;
+import smallgears.api.tabular.Table;
+import smallgears.api.tabular.impl.SpillingTable;
+import smallgears.api.tabular.operations.TableOperations.Key;
+import smallgears.api.tabular.utils.MaterialisedTable;
+
+/**
+ * Joins two tables within a memory budget, partitioning them on disk by the hash of their keys (a grace hash join).
+ * <p>
+ * Target rows are held in memory up to the budget. If they all fit, they are indexed and the source is probed as usual.
+ * Otherwise, target rows are partitioned into temporary files by a few bits of the hash of their keys, and so are source rows,
+ * and pairs of partitions are joined in turn, partitioning further with the next bits those that still exceed the budget.
+ * <p>
+ * Rows of materialised source tables are not copied, so that they can still be changed in place: they are scanned once, with the hashes of their keys,
+ * and their positions are partitioned in memory.
+ * {@link SpillingTable}s with rows on disk are partitioned on disk instead, as those rows are read-only copies anyway.
+ * <p>
+ * All the matches of a source row are in the same partition, so they are still processed in table order.
+ * Partitions of target rows with the same hash are joined in memory regardless of the budget, as they cannot be split,
+ * and so are partitions once the bits of the hash are exhausted, as their keys are mostly the same.
+ */
+@Slf4j
+class GraceJoin {
+
+	//partitions per level, by bits of hash above those used by indexes
+	private static final int BITS = 4;
+	private static final int FANOUT = 1 << BITS;
+	private static final int LEVELS = 32 / BITS;
+
+	private final long budget;
+
+	private final String[] sourcecols;
+	private final String[] targetcols;
+
+	private final BiConsumer<Row,Row> function;
+	private final Consumer<Row> fallback;
+
+	GraceJoin(long budget, String[] sourcecols, String[] targetcols, BiConsumer<Row,Row> function, Consumer<Row> fallback) {
+
+		this.budget=budget;
+		this.sourcecols=sourcecols;
+		this.targetcols=targetcols;
+		this.function=function;
+		this.fallback=fallback;
+	}
+
+	void run(Table source, Table target) {
+
+		boolean inplace = source.materialised() && !(source instanceof SpillingTable && ((SpillingTable) source).spilled()>0);
+
+		join(inplace ? new Positions((MaterialisedTable) source) : source,target,0);
+	}
+
+
+	//////////////////////////////////////////////////////////////////////////////////////////////
+
+
+	//in place if the source is a set of positions
+	private void join(Iterable<Row> source, Iterable<Row> target, int level) {
+
+		List<Row> held = new ArrayList<>();
+
+		long used = 0;
+
+		Iterator<Row> rows = target.iterator();
+
+		while (rows.hasNext() && used<=budget) {
+
+			Row row = rows.next();
+
+			held.add(row);
+
+			used+=cost(row);
+		}
+
+		if (used>budget && level==LEVELS) {
+
+			log.warn("cannot partition join further, joining {}+ target rows over budget",held.size());
+
+			rows.forEachRemaining(held::add);
+		}
+
+		else if (used>budget) {
+
+			//a partition of a single row, or of rows with the same hash, cannot be split
+			if (spread(held,rows)) {
+
+				split(source,held,rows,level);
+
+				return;
+			}
+
+			log.debug("joining {} target rows with the same hash over budget at level {}",held.size(),level);
+		}
+
+		probe(source,new RowIndex(held,targetcols));
+	}
+
+	//by the next bits of the hash, in turn
+	private void split(Iterable<Row> source, List<Row> held, Iterator<Row> rows, int level) {
+
+		log.debug("partitioning join beyond {} target rows at level {}",held.size(),level);
+
+		boolean inplace = source instanceof Positions;
+
+		SpillingTable[] targets = new SpillingTable[FANOUT];
+		SpillingTable[] sources = new SpillingTable[FANOUT];
+
+		try {
+
+			for (int p=0; p<FANOUT; p++) {
+
+				targets[p] = new SpillingTable(new ArrayList<>(),emptyList(),0);
+
+				if (!inplace)
+					sources[p] = new SpillingTable(new ArrayList<>(),emptyList(),0);
+			}
+
+			for (Row row : held)
+				targets[partition(Key.of(row,targetcols).hash(),level)].add(row);
+
+			held.clear();
+
+			rows.forEachRemaining(row->targets[partition(Key.of(row,targetcols).hash(),level)].add(row));
+
+			Positions[] positions = inplace ? ((Positions) source).split(level) : null;
+
+			if (!inplace)
+				for (Row row : source)
+					sources[partition(Key.of(row,sourcecols).hash(),level)].add(row);
+
+			for (int p=0; p<FANOUT; p++) {
+
+				//no source rows to probe
+				if (inplace ? positions[p].size>0 : sources[p].size()>0)
+					join(inplace ? positions[p] : sources[p], targets[p], level+1);
+
+				if (inplace)
+					positions[p]=null;
+
+				close(targets[p],sources[p]);
+			}
+		}
+		finally {
+
+			for (int p=0; p<FANOUT; p++)
+				close(targets[p],sources[p]);
+		}
+	}
+
+	//true if held rows have different hashes, reading further rows while they have the same
+	private boolean spread(List<Row> held, Iterator<Row> rows) {
+
+		long hash = Key.of(held.get(0),targetcols).hash();
+
+		for (int i=1; i<held.size(); i++)
+			if (Key.of(held.get(i),targetcols).hash()!=hash)
+				return true;
+
+		while (rows.hasNext()) {
+
+			Row row = rows.next();
+
+			held.add(row);
+
+			if (Key.of(row,targetcols).hash()!=hash)
+				return true;
+		}
+
+		return false;
+	}
+
+	private void probe(Iterable<Row> source, RowIndex index) {
+
+		for (Row row : source) {
+
+			int match = index.first(Key.of(row,sourcecols));
+
+			if (match<0)
+				fallback.accept(row);
+
+			//once per matching row, in table order
+			for (; match>=0; match = index.next(match))
+				function.accept(row,index.row(match));
+		}
+	}
+
+	//by high bits, as indexes slot keys by low bits
+	private static int partition(long hash, int level) {
+
+		return (int) (hash>>>(64-BITS*(level+1))) & (FANOUT-1);
+	}
+
+	private static void close(SpillingTable ... tables) {
+
+		for (SpillingTable table : tables)
+			if (table!=null)
+				table.close();
+	}
+
+	//rows of a materialised source at given positions, in table order
+	private class Positions implements Iterable<Row> {
+
+		private final MaterialisedTable table;
+
+		//all source rows, and the hashes of their keys, once partitioned
+		private Row[] rows;
+		private long[] hashes;
+
+		//ascending, or all rows if null
+		private final int[] positions;
+		private final int size;
+
+		Positions(MaterialisedTable table) {
+
+			this(table,null,null,null,table.size());
+		}
+
+		private Positions(MaterialisedTable table, Row[] rows, long[] hashes, int[] positions, int size) {
+
+			this.table=table;
+			this.rows=rows;
+			this.hashes=hashes;
+			this.positions=positions;
+			this.size=size;
+		}
+
+		@Override
+		public Iterator<Row> iterator() {
+
+			if (positions==null)
+				return table.iterator();
+
+			return new Iterator<Row>() {
+
+				int next;
+
+				@Override
+				public boolean hasNext() {
+					return next<size;
+				}
+
+				@Override
+				public Row next() {
+
+					if (!hasNext())
+						throw new NoSuchElementException();
+
+					return rows[positions[next++]];
+				}
+			};
+		}
+
+		//by the bits of a given level, scanning the source only the first time
+		Positions[] split(int level) {
+
+			if (rows==null) {
+
+				rows = new Row[size];
+				hashes = new long[size];
+
+				int i=0;
+
+				for (Row row : table) {
+					rows[i] = row;
+					hashes[i++] = Key.of(row,sourcecols).hash();
+				}
+			}
+
+			int[] counts = new int[FANOUT];
+
+			for (int i=0; i<size; i++)
+				counts[partition(hashes[position(i)],level)]++;
+
+			int[][] parts = new int[FANOUT][];
+
+			for (int p=0; p<FANOUT; p++)
+				parts[p] = new int[counts[p]];
+
+			int[] fill = new int[FANOUT];
+
+			for (int i=0; i<size; i++) {
+
+				int p = partition(hashes[position(i)],level);
+
+				parts[p][fill[p]++] = position(i);
+			}
+
+			Positions[] split = new Positions[FANOUT];
+
+			for (int p=0; p<FANOUT; p++)
+				split[p] = new Positions(table,rows,hashes,parts[p],counts[p]);
+
+			return split;
+		}
+
+		private int position(int i) {
+			return positions==null ? i : positions[i];
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package smallgears.api.tabular.operations;
+
+import static smallgears.api.tabular.utils.TableUtils.*;
+import static java.util.stream.Collectors.*;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import lombok.NonNull;
+import smallgears.api.tabular.Row;
+import smallgears.api.tabular.utils.MaterialisedTable;
+
+/**
+ * The {@link RowIndex}es registered on a {@link MaterialisedTable}, for reuse across operations.
+ * <p>
+ * Tables keep indexes up to date as rows are added or removed, when they can.
+ * Otherwise, indexes become stale and are rebuilt the next time they are used.
+ * <p>
+ * Indexes cannot follow changes to the values of rows in place: changing the value of an indexed column requires {@link #invalidate()}.
+ *
+ * @see MaterialisedTable#indexes()
+ */
+public class Indexes {
+
+	private final MaterialisedTable table;
+
+	//by columns, null if stale
+	private final Map<List<String>,RowIndex> indexes = new LinkedHashMap<>();
+
+	public Indexes(@NonNull MaterialisedTable table) {
+
+		this.table=table;
+	}
+
+	/**
+	 * Registers an index by given columns, unless one is registered already, and returns it.
+	 */
+	public RowIndex register(@NonNull Iterable<String> cols) {
+
+		List<String> key = streamof(cols).collect(toList());
+
+		if (!indexes.containsKey(key))
+			indexes.put(key,null);
+
+		return get(key).get();
+	}
+
+	/**
+	 * Returns the index by given columns, if one is registered.
+	 */
+	public Optional<RowIndex> get(@NonNull List<String> cols) {
+
+		if (!indexes.containsKey(cols))
+			return Optional.empty();
+
+		RowIndex index = indexes.get(cols);
+
+		if (index==null) {
+			index = new RowIndex(table,cols.toArray(new String[0]));
+			indexes.put(cols,index);
+		}
+
+		return Optional.of(index);
+	}
+
+	/**
+	 * Unregisters the index by given columns, if there is one.
+	 */
+	public void unregister(@NonNull List<String> cols) {
+
+		indexes.remove(cols);
+	}
+
+	/**
+	 * Returns the columns of the registered indexes.
+	 */
+	public Set<List<String>> registered() {
+
+		return Collections.unmodifiableSet(indexes.keySet());
+	}
+
+	/**
+	 * Returns <code>true</code> if there are up-to-date indexes.
+	 */
+	public boolean active() {
+
+		return indexes.values().stream().anyMatch(i->i!=null);
+	}
+
+	/**
+	 * Adds rows to the indexes, as they have been added to the table.
+	 */
+	public void added(@NonNull Iterable<Row> rows) {
+
+		for (RowIndex index : indexes.values())
+			if (index!=null)
+				index.add(rows);
+	}
+
+	/**
+	 * Removes rows from the indexes, as they have been removed from the table.
+	 *
+	 * @param rows the removed rows, by identity
+	 */
+	public void removed(@NonNull Set<Row> rows) {
+
+		if (rows.isEmpty())
+			return;
+
+		//stale if rows cannot be found by their keys
+		indexes.replaceAll((cols,index) -> index==null || !index.remove(rows) ? null : index);
+	}
+
+	/**
+	 * Makes all indexes stale, so that they are rebuilt the next time they are used.
+	 */
+	public void invalidate() {
+
+		indexes.replaceAll((cols,index)->null);
+	}
+
+	/**
+	 * Returns an empty set of rows compared by identity, to collect removed rows.
+	 */
+	public static Set<Row> identities() {
+
+		return Collections.newSetFromMap(new IdentityHashMap<>());
+	}
+}
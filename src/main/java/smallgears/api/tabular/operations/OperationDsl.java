@@ -9,6 +9,7 @@ import java.util.function.Consumer;
 
 import smallgears.api.tabular.Row;
 import smallgears.api.tabular.Table;
+import smallgears.api.tabular.operations.TableOperations.Key;
 import smallgears.api.tabular.operations.TableOperations.Match;
 import lombok.NonNull;
 
@@ -18,34 +19,74 @@ public class OperationDsl {
 	public static interface IndexClause<T> {
 		
 		/**
-		  * The columns to index on.
+		  * The columns to index on, by the concatenation of their values.
 		  */
 		default Map<String, T> using(@NonNull String... cols) {
 			return using(asList(cols));
 		}
 		 
 		 /**
-		  * The columns to index on.
+		  * The columns to index on, by the concatenation of their values.
 		  */
 		 Map<String,T> using(Iterable<String> cols);
+		 
+		/**
+		  * The columns to index on, by their values compared column by column.
+		  */
+		default Map<Key, T> usingKeys(@NonNull String... cols) {
+			return usingKeys(asList(cols));
+		}
+		 
+		 /**
+		  * The columns to index on, by their values compared column by column.
+		  */
+		 Map<Key,T> usingKeys(Iterable<String> cols);
 
 		 
 		 IndexClause<String> over(String col);
 	}
 	
+	public static interface MultiIndexClause {
+		
+		/**
+		  * The columns to index on.
+		  */
+		default RowIndex using(@NonNull String... cols) {
+			return using(asList(cols));
+		}
+		 
+		 /**
+		  * The columns to index on.
+		  */
+		 RowIndex using(Iterable<String> cols);
+
+	}
+	
 	public static interface GroupClause {
 		
 		/**
-		  * The columns to group by.
+		  * The columns to group by, by the concatenation of their values.
 		  */
 		default Map<String, List<Row>> by(@NonNull String... cols) {
 			return by(asList(cols));
 		}
 		 
 		 /**
-		  * The columns to group by.
+		  * The columns to group by, by the concatenation of their values.
 		  */
 		 Map<String,List<Row>> by(Iterable<String> cols);
+		 
+		/**
+		  * The columns to group by, by their values compared column by column.
+		  */
+		default Map<Key, List<Row>> byKeys(@NonNull String... cols) {
+			return byKeys(asList(cols));
+		}
+		 
+		 /**
+		  * The columns to group by, by their values compared column by column.
+		  */
+		 Map<Key,List<Row>> byKeys(Iterable<String> cols);
 
 	}
 	
@@ -56,9 +97,18 @@ public class OperationDsl {
 		}
 		 
 		 /**
-		  * The columns to index on.
+		  * The columns to index on, by the concatenation of their values.
 		  */
 		Map<String,Void> using(Iterable<String> cols);
+		
+		default Map<Key,Void> usingKeys(@NonNull String... cols) {
+			return usingKeys(asList(cols));
+		}
+		 
+		 /**
+		  * The columns to index on, by their values compared column by column.
+		  */
+		Map<Key,Void> usingKeys(Iterable<String> cols);
 
 	}
 	
@@ -75,7 +125,7 @@ public class OperationDsl {
 	public static interface JoinClause {
 		
 		 /**
-		 * The function that processes matching rows.
+		 * The function that processes matching rows, once for each match.
 		 * <p>
 		 * By default, the rows are joined.
 		 */
@@ -85,14 +135,45 @@ public class OperationDsl {
 		 * The function that processes unmatched rows.
 		 */
 		 JoinClause fallbackWith(Consumer<Row> function);
+		 
+		 /**
+		 * The number of threads that may join the tables, one by default.
+		 * <p>
+		 * With more threads, both tables are partitioned by key and processed concurrently.
+		 * All the matches of a source row are processed on the same thread and in table order, but different source rows are processed concurrently and in no particular order.
+		 * So functions must be thread-safe, and may change only the source rows they are given.
+		 * The default join holds to this only for {@link smallgears.api.tabular.impl.SimpleTable}s, whose rows are independent of each other,
+		 * and runs on the calling thread into other tables, e.g. into views of columnar or off-heap tables, saying so in the log.
+		 * <p>
+		 * A {@link #budget(long)} takes precedence: joins that partition tables on disk run on the calling thread, and say so in the log.
+		 * 
+		 * @throws IllegalArgumentException if the number is not positive
+		 */
+		 JoinClause parallelism(int threads);
+		 
+		 /**
+		 * The number of bytes of heap that the join may take to hold the rows of the target table, unbounded by default.
+		 * <p>
+		 * Beyond it, both tables are partitioned by key into temporary files, and partitions are joined in turn, on the calling thread regardless of {@link #parallelism(int)}.
+		 * Source rows are then processed partition by partition rather than in table order, though the matches of each row still are.
+		 * Rows of materialised source tables are processed in place, while other rows are decoded from disk as read-only copies,
+		 * as are the spilled rows of {@link smallgears.api.tabular.impl.SpillingTable}s, so the default join rejects both.
+		 * 
+		 * @throws IllegalArgumentException if the number is negative
+		 */
+		 JoinClause budget(long bytes);
 		
 		 /**
 		 * One or more pairs of columns to match.
+		 * 
+		 * @throws IllegalArgumentException if the default join would merge into rows read back from disk
 		 */
 		 void basedOn(Match ... matches);
 		 
 		 /**
 		 * One or more pairs of columns to match.
+		 * 
+		 * @throws IllegalArgumentException if the default join would merge into rows read back from disk
 		 */
 		 void basedOn(Iterable<Match> matches);
 		 
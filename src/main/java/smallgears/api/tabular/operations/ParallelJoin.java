@@ -0,0 +1,239 @@
+package smallgears.api.tabular.operations;
+
+import static java.util.Arrays.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+import lombok.SneakyThrows;
+import smallgears.api.tabular.Row;
+import smallgears.api.tabular.Table;
+import smallgears.api.tabular.operations.TableOperations.Key;
+import smallgears.api.tabular.utils.MaterialisedTable;
+
+/**
+ * Joins two tables on multiple threads, partitioning both sides by the hash of their keys.
+ * <p>
+ * Rows of the target table are collected on the calling thread. Then, on a {@link ForkJoinPool}:
+ * <ul>
+ * <li> keys of target rows are computed, and rows are assigned to partitions by the high bits of their hash;
+ * <li> each partition is indexed on its own, with no shared state;
+ * <li> chunks of source rows are probed against the partitions of their keys, as the calling thread pulls them from the source.
+ * </ul>
+ * Only a few chunks of source rows are in flight at any time, so the source is never held in memory as a whole.
+ * A target index {@link MaterialisedTable#indexes() registered} by the same columns is shared by all probes instead.
+ * <p>
+ * All matches of a source row are processed on the same thread, in table order, as in a sequential join.
+ * Different source rows are processed concurrently, and in no particular order.
+ */
+class ParallelJoin {
+
+	//partitions per thread, to even out skew
+	private static final int SPREAD = 4;
+
+	//source rows per task
+	private static final int CHUNK = 1024;
+
+	//source chunks in flight per thread
+	private static final int WINDOW = 2;
+
+	private final int threads;
+
+	private final String[] sourcecols;
+	private final String[] targetcols;
+
+	private final BiConsumer<Row,Row> function;
+	private final Consumer<Row> fallback;
+
+	//of the partitions
+	private int bits;
+
+	ParallelJoin(int threads, String[] sourcecols, String[] targetcols, BiConsumer<Row,Row> function, Consumer<Row> fallback) {
+
+		this.threads=threads;
+		this.sourcecols=sourcecols;
+		this.targetcols=targetcols;
+		this.function=function;
+		this.fallback=fallback;
+	}
+
+	void run(Table source, Table target) {
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+
+		try {
+
+			RowIndex[] partitions = partitions(pool,target);
+
+			probe(pool,source,partitions);
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+
+
+	//////////////////////////////////////////////////////////////////////////////////////////////
+
+
+	private RowIndex[] partitions(ForkJoinPool pool, Table target) {
+
+		Optional<RowIndex> registered = target instanceof MaterialisedTable ? ((MaterialisedTable) target).indexes().get(asList(targetcols)) : Optional.empty();
+
+		if (registered.isPresent()) {
+			bits=0;
+			return new RowIndex[] {registered.get()};
+		}
+
+		bits = Integer.numberOfTrailingZeros(Integer.highestOneBit(threads*SPREAD-1)<<1);
+
+		List<Row> rows = collect(target);
+
+		Key[] keys = new Key[rows.size()];
+		int[] owners = new int[rows.size()];
+
+		forEachChunk(pool,rows.size(),i->{
+
+			keys[i] = Key.of(rows.get(i),targetcols);
+			owners[i] = partition(keys[i]);
+		});
+
+		//positions grouped by partition, in table order within each
+		int[] starts = new int[(1<<bits)+1];
+
+		for (int owner : owners)
+			starts[owner+1]++;
+
+		for (int p=0; p<1<<bits; p++)
+			starts[p+1]+=starts[p];
+
+		int[] order = new int[rows.size()];
+		int[] fill = starts.clone();
+
+		for (int i=0; i<owners.length; i++)
+			order[fill[owners[i]]++]=i;
+
+		RowIndex[] partitions = new RowIndex[1<<bits];
+
+		forEach(pool,partitions.length,p->{
+
+			RowIndex index = new RowIndex(targetcols);
+
+			for (int j=starts[p]; j<starts[p+1]; j++)
+				index.add(rows.get(order[j]),keys[order[j]]);
+
+			partitions[p]=index;
+		});
+
+		return partitions;
+	}
+
+	//chunk by chunk, as they are pulled from the source
+	@SneakyThrows
+	private void probe(ForkJoinPool pool, Table source, RowIndex[] partitions) {
+
+		Deque<Future<?>> inflight = new ArrayDeque<>();
+
+		Iterator<Row> rows = source.iterator();
+
+		try {
+
+			while (rows.hasNext()) {
+
+				List<Row> chunk = new ArrayList<>(CHUNK);
+
+				while (chunk.size()<CHUNK && rows.hasNext())
+					chunk.add(rows.next());
+
+				if (inflight.size()==threads*WINDOW)
+					inflight.removeFirst().get();
+
+				inflight.addLast(pool.submit(()->chunk.forEach(row->probe(row,partitions))));
+			}
+
+			while (!inflight.isEmpty())
+				inflight.removeFirst().get();
+		}
+		catch(ExecutionException e) {
+			throw e.getCause();
+		}
+	}
+
+	private void probe(Row row, RowIndex[] partitions) {
+
+		Key key = Key.of(row,sourcecols);
+
+		RowIndex index = partitions[partition(key)];
+
+		int match = index.first(key);
+
+		if (match<0)
+			fallback.accept(row);
+
+		for (; match>=0; match = index.next(match))
+			function.accept(row,index.row(match));
+	}
+
+	//by high bits, as indexes slot keys by low bits
+	private int partition(Key key) {
+
+		return bits==0 ? 0 : (int) (key.hash()>>>(64-bits));
+	}
+
+	private static List<Row> collect(Table table) {
+
+		List<Row> rows = table instanceof MaterialisedTable ? new ArrayList<>(((MaterialisedTable) table).size()) : new ArrayList<>();
+
+		table.forEach(rows::add);
+
+		return rows;
+	}
+
+	//over contiguous ranges of positions
+	private void forEachChunk(ForkJoinPool pool, int size, IntConsumer task) {
+
+		int chunks = Math.min(size,threads*SPREAD);
+
+		forEach(pool,chunks,c->{
+
+			for (int i=(int) ((long) size*c/chunks); i<(int) ((long) size*(c+1)/chunks); i++)
+				task.accept(i);
+		});
+	}
+
+	//surfaces the first failure, as thrown
+	@SneakyThrows
+	private static void forEach(ForkJoinPool pool, int count, IntConsumer task) {
+
+		List<Callable<Void>> tasks = new ArrayList<>(count);
+
+		for (int i=0; i<count; i++) {
+
+			int n=i;
+
+			tasks.add(()->{
+				task.accept(n);
+				return null;
+			});
+		}
+
+		try {
+			for (Future<Void> future : pool.invokeAll(tasks))
+				future.get();
+		}
+		catch(ExecutionException e) {
+			throw e.getCause();
+		}
+	}
+}
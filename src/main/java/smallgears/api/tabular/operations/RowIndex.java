@@ -0,0 +1,417 @@
+package smallgears.api.tabular.operations;
+
+import java.util.AbstractMap;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+import lombok.NonNull;
+import smallgears.api.tabular.Row;
+import smallgears.api.tabular.Table;
+import smallgears.api.tabular.operations.TableOperations.Key;
+
+/**
+ * An index of all the rows of a table by the values of one or more columns, including rows that share the same values.
+ * <p>
+ * Rows are held in an array and referenced by position. Each distinct key points to its first and last rows,
+ * and each row to the previous and next ones with the same key, in primitive arrays, so there are no per-key collections.
+ * Rows with the same key are visited in table order.
+ * <p>
+ * Rows with {@link Key#blank() blank} keys are not indexed.
+ * Unless the index is registered with the {@link Indexes} of a table, later changes to the table are not reflected.
+ *
+ * @see TableOperations#indexall(Table)
+ */
+public class RowIndex {
+
+	private static final int NONE = -1;
+
+	private final String[] cols;
+
+	//by position, null once removed
+	private Row[] rows;
+	private int count;
+
+	//previous and next rows with same key, by position
+	private int[] prev;
+	private int[] next;
+
+	//distinct keys, and positions of their first and last rows, open addressing
+	private Key[] keys;
+	private int[] heads;
+	private int[] tails;
+
+	//keys with rows, and occupied slots
+	private int size;
+	private int used;
+
+	private int removed;
+
+	RowIndex(@NonNull Iterable<Row> rows, @NonNull String[] cols) {
+
+		this(cols);
+
+		add(rows);
+	}
+
+	RowIndex(@NonNull String[] cols) {
+
+		this.cols=cols;
+
+		reset(16);
+	}
+
+	/**
+	 * Returns the number of distinct keys.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the indexed columns.
+	 */
+	public List<String> columns() {
+		return Arrays.asList(cols.clone());
+	}
+
+	/**
+	 * Returns <code>true</code> if some rows have a given key.
+	 */
+	public boolean contains(@NonNull Key key) {
+		return first(key)!=NONE;
+	}
+
+	/**
+	 * Returns the number of rows with a given key.
+	 */
+	public int count(@NonNull Key key) {
+
+		int count=0;
+
+		for (int i=first(key); i!=NONE; i=next[i])
+			count++;
+
+		return count;
+	}
+
+	/**
+	 * Returns the rows with a given key.
+	 */
+	public List<Row> get(@NonNull Key key) {
+
+		List<Row> matches = new ArrayList<>();
+
+		forEach(key,matches::add);
+
+		return matches;
+	}
+
+	/**
+	 * Processes the rows with a given key, in table order.
+	 */
+	public void forEach(@NonNull Key key, @NonNull Consumer<? super Row> action) {
+
+		for (int i=first(key); i!=NONE; i=next[i])
+			action.accept(rows[i]);
+	}
+
+	/**
+	 * Returns the position of the first row with a given key, or <code>-1</code> if there is none.
+	 * <p>
+	 * With {@link #next(int)} and {@link #row(int)}, visits matching rows without allocations.
+	 */
+	public int first(@NonNull Key key) {
+
+		int slot = slot(keys,key);
+
+		return keys[slot]==null ? NONE : heads[slot];
+	}
+
+	/**
+	 * Returns the position of the next row with the same key as the row at a given position, or <code>-1</code> if there is none.
+	 */
+	public int next(int position) {
+		return next[position];
+	}
+
+	/**
+	 * Returns the row at a given position.
+	 */
+	public Row row(int position) {
+		return rows[position];
+	}
+
+	/**
+	 * Returns a read-only view of the last row with each key.
+	 */
+	public Map<Key,Row> last() {
+		return new View<>(i->rows[i]);
+	}
+
+	/**
+	 * Returns a read-only view of the keys, without values.
+	 */
+	public Map<Key,Void> keys() {
+		return new View<>(i->null);
+	}
+
+
+	//////////////////////////////////////////////////////////////////////////////////////////////
+
+
+	void add(Iterable<Row> rows) {
+
+		for (Row row : rows)
+			append(row,Key.of(row,cols));
+	}
+
+	//with its key already computed
+	void add(Row row, Key key) {
+
+		append(row,key);
+	}
+
+	//rows by identity, false if they cannot be found by their keys
+	boolean remove(Set<Row> rows) {
+
+		for (int i=0; i<count; i++)
+			if (this.rows[i]!=null && rows.contains(this.rows[i]))
+				if (!unlink(i))
+					return false;
+
+		//reclaims positions once they are mostly unused
+		if (removed>16 && removed*2>count) {
+
+			Row[] live = Arrays.stream(this.rows,0,count).filter(r->r!=null).toArray(Row[]::new);
+
+			reset(keys.length);
+
+			for (Row row : live)
+				append(row,Key.of(row,cols));
+		}
+
+		return true;
+	}
+
+	private void reset(int slots) {
+
+		rows = new Row[16];
+		prev = new int[16];
+		next = new int[16];
+		count=0;
+		removed=0;
+
+		keys = new Key[slots];
+		heads = new int[slots];
+		tails = new int[slots];
+		size=0;
+		used=0;
+	}
+
+	private void append(Row row, Key key) {
+
+		if (count==rows.length) {
+			rows = Arrays.copyOf(rows,count*2);
+			prev = Arrays.copyOf(prev,count*2);
+			next = Arrays.copyOf(next,count*2);
+		}
+
+		int i = count++;
+
+		rows[i]=row;
+		prev[i]=NONE;
+		next[i]=NONE;
+
+		if (key.blank())
+			return;
+
+		int slot = slot(keys,key);
+
+		if (keys[slot]==null) {
+
+			keys[slot]=key;
+			heads[slot]=NONE;
+			tails[slot]=NONE;
+
+			if (++used*2>keys.length)
+				slot=grow(key);
+		}
+
+		if (heads[slot]==NONE) {
+			heads[slot]=i;
+			size++;
+		}
+		else {
+			next[tails[slot]]=i;
+			prev[i]=tails[slot];
+		}
+
+		tails[slot]=i;
+	}
+
+	//false if the row is not under its key, as its values changed in place
+	private boolean unlink(int i) {
+
+		Key key = Key.of(rows[i],cols);
+
+		if (key.blank())
+			return prev[i]==NONE && next[i]==NONE && clear(i);
+
+		int slot = slot(keys,key);
+
+		if (keys[slot]==null || !linked(slot,i))
+			return false;
+
+		if (prev[i]==NONE)
+			heads[slot]=next[i];
+		else
+			next[prev[i]]=next[i];
+
+		if (next[i]==NONE)
+			tails[slot]=prev[i];
+		else
+			prev[next[i]]=prev[i];
+
+		if (heads[slot]==NONE)
+			size--;
+
+		return clear(i);
+	}
+
+	private boolean linked(int slot, int i) {
+
+		return (prev[i]==NONE ? heads[slot]==i : next[prev[i]]==i) && (next[i]==NONE ? tails[slot]==i : prev[next[i]]==i);
+	}
+
+	private boolean clear(int i) {
+
+		rows[i]=null;
+		removed++;
+
+		return true;
+	}
+
+	//slot of key, or of the empty slot where it belongs
+	private static int slot(Key[] keys, Key key) {
+
+		int mask = keys.length-1;
+
+		int slot = (int) key.hash() & mask;
+
+		while (keys[slot]!=null && !keys[slot].equals(key))
+			slot = (slot+1) & mask;
+
+		return slot;
+	}
+
+	//doubles the slots, and returns the new slot of a given key
+	private int grow(Key key) {
+
+		Key[] oldkeys = keys;
+		int[] oldheads = heads;
+		int[] oldtails = tails;
+
+		keys = new Key[oldkeys.length*2];
+		heads = new int[oldkeys.length*2];
+		tails = new int[oldkeys.length*2];
+
+		for (int i=0; i<oldkeys.length; i++)
+			if (oldkeys[i]!=null) {
+
+				int slot = slot(keys,oldkeys[i]);
+
+				keys[slot]=oldkeys[i];
+				heads[slot]=oldheads[i];
+				tails[slot]=oldtails[i];
+			}
+
+		return slot(keys,key);
+	}
+
+	//keys with rows, valued from the positions of their last rows
+	private class View<T> extends AbstractMap<Key,T> {
+
+		final IntFunction<T> value;
+
+		View(IntFunction<T> value) {
+			this.value=value;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof Key && contains((Key) key);
+		}
+
+		@Override
+		public T get(Object key) {
+
+			if (!(key instanceof Key))
+				return null;
+
+			int slot = slot(keys,(Key) key);
+
+			return keys[slot]==null || tails[slot]==NONE ? null : value.apply(tails[slot]);
+		}
+
+		@Override
+		public Set<Entry<Key,T>> entrySet() {
+
+			return new AbstractSet<Entry<Key,T>>() {
+
+				@Override
+				public int size() {
+					return size;
+				}
+
+				@Override
+				public Iterator<Entry<Key,T>> iterator() {
+
+					return new Iterator<Entry<Key,T>>() {
+
+						int slot = advance(0);
+
+						@Override
+						public boolean hasNext() {
+							return slot<keys.length;
+						}
+
+						@Override
+						public Entry<Key,T> next() {
+
+							if (!hasNext())
+								throw new NoSuchElementException();
+
+							Entry<Key,T> entry = new SimpleImmutableEntry<>(keys[slot],value.apply(tails[slot]));
+
+							slot = advance(slot+1);
+
+							return entry;
+						}
+
+						int advance(int from) {
+
+							while (from<keys.length && (keys[from]==null || tails[from]==NONE))
+								from++;
+
+							return from;
+						}
+					};
+				}
+			};
+		}
+	}
+}
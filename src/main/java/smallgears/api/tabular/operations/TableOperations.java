@@ -1,39 +1,49 @@
 package smallgears.api.tabular.operations;
 
 import static java.util.Arrays.*;
-import static java.util.function.Function.*;
+import static java.util.Collections.*;
 import static java.util.stream.Collectors.*;
 import static smallgears.api.tabular.utils.TableUtils.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.function.BiConsumer;
-import java.util.function.BinaryOperator;
 import java.util.function.Consumer;
-import java.util.function.Function;
 
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
 import smallgears.api.tabular.Row;
 import smallgears.api.tabular.Table;
+import smallgears.api.tabular.utils.MaterialisedTable;
+import smallgears.api.tabular.impl.SimpleTable;
+import smallgears.api.tabular.impl.SpillingTable;
 import smallgears.api.tabular.operations.OperationDsl.ExistMapClause;
 import smallgears.api.tabular.operations.OperationDsl.GroupClause;
 import smallgears.api.tabular.operations.OperationDsl.IndexClause;
 import smallgears.api.tabular.operations.OperationDsl.JoinClause;
+import smallgears.api.tabular.operations.OperationDsl.MultiIndexClause;
 import smallgears.api.tabular.operations.OperationDsl.WithClause;
-import smallgears.api.tabular.utils.TableUtils;
 
 /**
  * Table processing facilities.
  */
+@Slf4j
 public class TableOperations {
 
 	private static BiConsumer<Row, Row> joinfunction = (s,t) -> s.merge(t);
 
 	
 	/**
-	 * Indexes a table by the (concatenated) values of one or more columns.
+	 * Indexes a table by the values of one or more columns, either concatenated or compared column by column.
+	 * <p>
+	 * Rows with empty concatenations or {@link Key#blank() blank} keys are not indexed.
+	 * If the table has a {@link MaterialisedTable#indexes() registered} index by the same columns, the map is copied from it rather than built by a scan.
 	 */
 	public static IndexClause<Row> index(@NonNull Table table) {
 		
@@ -41,18 +51,44 @@ public class TableOperations {
 		
 			public Map<String,Row> using(@NonNull Iterable<String> cols) {
 			
-				//key is concatenation of column values
-				Function<Row,String> key = r -> TableUtils.join(streamof(cols).map(r::get));
+				String[] names = names(cols);
+				
+				Map<String,Row> index = new HashMap<>();
 				
 				//deal with duplicates by picking latest (random choice)
-				BinaryOperator<Row> picklatestduplicate = (r1,r2)->r2;
+				for (Row row : table) {
+					
+					String key = concatenation(row,names);
+					
+					if (!key.isEmpty())
+						index.put(key,row);
+				}
 				
-				return table.stream()
-							.filter(r->!key.apply(r).isEmpty())
-							.collect(toMap(key,identity(),picklatestduplicate));
+				return index;
+			}
 			
+			public Map<Key,Row> usingKeys(@NonNull Iterable<String> cols) {
+			
+				String[] names = names(cols);
+				
+				Optional<RowIndex> registered = registered(table,names);
+				
+				if (registered.isPresent())
+					return new HashMap<>(registered.get().last());
+				
+				Map<Key,Row> index = new HashMap<>();
 				
+				//deal with duplicates by picking latest (random choice)
+				for (Row row : table) {
+					
+					Key key = Key.of(row,names);
+					
+					if (!key.blank())
+						index.put(key,row);
 				}
+				
+				return index;
+			}
 			
 			public IndexClause<String> over(@NonNull String col) {
 				
@@ -71,6 +107,14 @@ public class TableOperations {
 									.collect(toMap(e->e.getKey(), e->e.getValue().get(col)));
 						}
 						
+						@Override
+						public Map<Key, String> usingKeys(Iterable<String> cols) {
+							return IndexClauseImpl.this.usingKeys(cols)
+									.entrySet()
+									.stream()
+									.collect(toMap(e->e.getKey(), e->e.getValue().get(col)));
+						}
+						
 					};
 					
 			}
@@ -80,37 +124,161 @@ public class TableOperations {
 	}
 	
 	/**
-	 * Groups a table by the (concatenated) values of one or more columns.
+	 * Indexes all the rows of a table by the values of one or more columns, including rows with the same values.
+	 * <p>
+	 * If the table has a {@link MaterialisedTable#indexes() registered} index by the same columns, it returns that index.
 	 */
-	public static GroupClause group(@NonNull Table table) {
+	public static MultiIndexClause indexall(@NonNull Table table) {
 		
 		return (@NonNull Iterable<String> cols) -> {
 			
-			//key is concatenation of column values
-			Function<Row,String> key = r -> TableUtils.join(streamof(cols).map(r::get));
+			String[] names = names(cols);
 			
-			return table.stream().filter(r->!key.apply(r).isEmpty()).collect(groupingBy(key,toList()));
+			return registered(table,names).orElseGet(()->new RowIndex(table,names));
+		};
+	}
+	
+	/**
+	 * Groups a table by the values of one or more columns, either concatenated or compared column by column.
+	 * <p>
+	 * Rows with empty concatenations or {@link Key#blank() blank} keys are not grouped.
+	 */
+	public static GroupClause group(@NonNull Table table) {
 		
+		return new GroupClause() {
+			
+			@Override
+			public Map<String,List<Row>> by(@NonNull Iterable<String> cols) {
+				
+				String[] names = names(cols);
+				
+				Map<String,List<Row>> groups = new HashMap<>();
+				
+				for (Row row : table) {
+					
+					String key = concatenation(row,names);
+					
+					if (!key.isEmpty())
+						groups.computeIfAbsent(key,$->new ArrayList<>()).add(row);
+				}
+				
+				return groups;
+			}
+			
+			@Override
+			public Map<Key,List<Row>> byKeys(@NonNull Iterable<String> cols) {
+				
+				String[] names = names(cols);
+				
+				Map<Key,List<Row>> groups = new HashMap<>();
+				
+				for (Row row : table) {
+					
+					Key key = Key.of(row,names);
+					
+					if (!key.blank())
+						groups.computeIfAbsent(key,$->new ArrayList<>()).add(row);
+				}
+				
+				return groups;
+			}
 		};
 	}
 
 	
 	/**
-	 * Extracts one or more columns in preparation for lookup.
+	 * Extracts one or more columns in preparation for lookup, either concatenated or compared column by column.
+	 * <p>
+	 * Rows with empty concatenations or {@link Key#blank() blank} keys are not extracted.
+	 * If the table has a {@link MaterialisedTable#indexes() registered} index by the same columns, the map is copied from it rather than built by a scan.
 	 */
 	public static ExistMapClause indexist(@NonNull Table table) {
 		
-		return (@NonNull Iterable<String> cols) -> {
+		return new ExistMapClause() {
 			
-			//key is concatenation of column values
-			Function<Row,String> key = r -> TableUtils.join(streamof(cols).map(r::get));
+			@Override
+			public Map<String,Void> using(@NonNull Iterable<String> cols) {
+				
+				String[] names = names(cols);
+				
+				Map<String,Void> keys = new HashMap<>();
+				
+				for (Row row : table) {
+					
+					String key = concatenation(row,names);
+					
+					if (!key.isEmpty())
+						keys.put(key,null);
+				}
+				
+				return keys;
+			}
 			
-			//deal with duplicates by picking latest (random choice)
-			BinaryOperator<Void> picklatestduplicate = (n1,n2)->n1;
+			@Override
+			public Map<Key,Void> usingKeys(@NonNull Iterable<String> cols) {
+				
+				String[] names = names(cols);
+				
+				Optional<RowIndex> registered = registered(table,names);
+				
+				if (registered.isPresent())
+					return new HashMap<>(registered.get().keys());
+				
+				Map<Key,Void> keys = new HashMap<>();
+				
+				for (Row row : table) {
+					
+					Key key = Key.of(row,names);
+					
+					if (!key.blank())
+						keys.put(key,null);
+				}
+				
+				return keys;
+			}
+		};
+	}
+	
+	//values of given columns, concatenated
+	private static String concatenation(Row row, String[] names) {
+		
+		if (names.length==1) {
 			
-			return table.stream().filter(r->!key.apply(r).isEmpty()).collect(toMap(key,$->null,picklatestduplicate));
+			String value = row.get(names[0]);
+			
+			return value==null ? "" : value;
+		}
 		
-		};
+		StringBuilder key = new StringBuilder();
+		
+		for (String name : names) {
+			
+			String value = row.get(name);
+			
+			if (value!=null)
+				key.append(value);
+		}
+		
+		return key.toString();
+	}
+	
+	//true if some rows of the table are on disk
+	private static boolean spilled(Table table) {
+		
+		return table instanceof SpillingTable && ((SpillingTable) table).spilled()>0;
+	}
+	
+	//index registered with the table by given columns, if any
+	private static Optional<RowIndex> registered(Table table, String[] names) {
+		
+		return table instanceof MaterialisedTable ? ((MaterialisedTable) table).indexes().get(asList(names)) : Optional.empty();
+	}
+	
+	/**
+	 * Returns the key of given values, e.g. to look up indexes and groups.
+	 */
+	public static Key key(@NonNull String ... values) {
+		return new Key(values.clone());
 	}
 	
 	/**
@@ -129,6 +297,13 @@ public class TableOperations {
 	
 	/**
 	 * Joins the rows of two tables which have the same values in some columns.
+	 * <p>
+	 * Rows are processed once for each matching row of the other table, so that one-to-many and many-to-many joins can be expressed with {@link JoinClause#using(BiConsumer)}.
+	 * By default, rows are merged with all their matches in turn, so the latest match prevails on shared columns,
+	 * and the {@link MaterialisedTable#indexes() indexes} of materialised tables become stale.
+	 * <p>
+	 * Tables can be joined on multiple threads with {@link JoinClause#parallelism(int)}, under the thread-safety rules it describes,
+	 * and within a memory budget with {@link JoinClause#budget(long)}, partitioning them on disk.
 	 */
 	public static WithClause join(@NonNull Table table) {
 		
@@ -138,6 +313,8 @@ public class TableOperations {
 				
 				BiConsumer<Row, Row> function = joinfunction;
 				Consumer<Row> fallback = (__) -> {};
+				int parallelism = 1;
+				long budget = Long.MAX_VALUE;
 				
 				@Override
 				public JoinClause using(@NonNull BiConsumer<Row, Row> function) {
@@ -154,25 +331,74 @@ public class TableOperations {
 					return this;
 				}
 				
+				@Override
+				public JoinClause parallelism(int threads) {
+					
+					if (threads<1)
+						throw new IllegalArgumentException("invalid parallelism: "+threads);
+					
+					this.parallelism=threads;
+					return this;
+				}
+				
+				@Override
+				public JoinClause budget(long bytes) {
+					
+					if (bytes<0)
+						throw new IllegalArgumentException("invalid budget: "+bytes);
+					
+					this.budget=bytes;
+					return this;
+				}
+				
 				@Override
 				public void basedOn(@NonNull Iterable<Match> matches) {
 					
 					List<String> targetcols = streamof(matches).map(Match::col2).collect(toList());
 					
-					Map<String,Row> targetIndex = index(target).using(targetcols);
+					String[] sourcecols = names(streamof(matches).map(Match::col1).collect(toList()));
+					
+					//a registered index is in memory already
+					boolean partitioned = budget<Long.MAX_VALUE && !registered(target,names(targetcols)).isPresent();
 					
-					table.forEach(row-> {
+					//rows decoded from disk are read-only
+					if (function==joinfunction && (spilled(table) || partitioned && !table.materialised()))
+						throw new IllegalArgumentException("cannot merge into rows read back from disk, join with a function instead");
+					
+					//the default join writes into source rows, which may share state across threads unless they are simple
+					boolean parallel = parallelism>1 && (function!=joinfunction || table instanceof SimpleTable);
+					
+					if (partitioned && parallelism>1)
+						log.info("joining within a budget of {} bytes on the calling thread, rather than on {} threads",budget,parallelism);
+					
+					else if (parallelism>1 && !parallel)
+						log.info("merging into rows of a {} on the calling thread, rather than on {} threads",table.getClass().getSimpleName(),parallelism);
+					
+					if (partitioned)
 						
-						List<String> sourcecols = streamof(matches).map(Match::col1).collect(toList());
+						new GraceJoin(budget,sourcecols,names(targetcols),function,fallback).run(table,target);
+					
+					else if (parallel)
 						
-						String key  = TableUtils.join(streamof(sourcecols).map(row::get));
+						new ParallelJoin(parallelism,sourcecols,names(targetcols),function,fallback).run(table,target);
+					
+					else {
 						
-						if (targetIndex.containsKey(key))
-							function.accept(row,targetIndex.get(key));
-						else
-							fallback.accept(row);
+						RowIndex targetIndex = indexall(target).using(targetcols);
 						
-					});
+						table.forEach(row-> {
+							
+							int match = targetIndex.first(Key.of(row,sourcecols));
+							
+							if (match<0)
+								fallback.accept(row);
+							
+							//once per matching row, in table order
+							for (; match>=0; match = targetIndex.next(match))
+								function.accept(row,targetIndex.row(match));
+							
+						});
+					}
 					
 					//add columns as we know the consumer function
 					//unless they are matching columns that already exist.
@@ -183,6 +409,10 @@ public class TableOperations {
 						!table.columns().contains(c) || !targetcols.contains(c.name())
 						)
 						.forEach(table.columns()::add);
+					
+					//values merged in place may be indexed
+					if (function==joinfunction && table instanceof MaterialisedTable)
+						((MaterialisedTable) table).indexes().invalidate();
 						
 					
 				}
@@ -208,6 +438,115 @@ public class TableOperations {
 		String col2;
 	}
 	
+	/**
+	 * The values of one or more columns in a row, compared column by column.
+	 * <p>
+	 * Missing values are <code>null</code>, and differ from empty ones. The hash of the values is computed once, over 64 bits and from their characters.
+	 */
+	public static final class Key {
+		
+		private final String[] values;
+		
+		private final long hash;
+		
+		private Key(String[] values) {
+			
+			this.values=values;
+			
+			long hash = 0x9E3779B97F4A7C15L;
+			
+			for (String value : values)
+				hash = (hash ^ hash(value)) * 0xff51afd7ed558ccdL + 0x2545F4914F6CDD1DL;
+			
+			//murmur3 finaliser
+			hash ^= hash >>> 33;
+			hash *= 0xc4ceb9fe1a85ec53L;
+			hash ^= hash >>> 33;
+			
+			this.hash=hash;
+		}
+		
+		//over characters, as values that collide on String.hashCode() would collide on any hash derived from it
+		private static long hash(String value) {
+			
+			if (value==null)
+				return 0x5bd1e995L;
+			
+			//FNV-1a
+			long hash = 0xcbf29ce484222325L;
+			
+			for (int i=0; i<value.length(); i++)
+				hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+			
+			return hash;
+		}
+		
+		static Key of(Row row, String[] cols) {
+			
+			String[] values = new String[cols.length];
+			
+			for (int i=0; i<cols.length; i++)
+				values[i]=row.get(cols[i]);
+			
+			return new Key(values);
+		}
+		
+		/**
+		 * Returns the values of this key.
+		 */
+		public List<String> values() {
+			return unmodifiableList(asList(values));
+		}
+		
+		/**
+		 * Returns the 64-bit hash of this key.
+		 */
+		public long hash() {
+			return hash;
+		}
+		
+		/**
+		 * Returns <code>true</code> if all values are missing or empty.
+		 */
+		public boolean blank() {
+			
+			for (String value : values)
+				if (value!=null && !value.isEmpty())
+					return false;
+			
+			return true;
+		}
+		
+		@Override
+		public int hashCode() {
+			return (int) (hash ^ hash >>> 32);
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			
+			if (this==obj)
+				return true;
+			
+			if (!(obj instanceof Key))
+				return false;
+			
+			Key other = (Key) obj;
+			
+			return hash==other.hash && Arrays.equals(values,other.values);
+		}
+		
+		@Override
+		public String toString() {
+			return Arrays.toString(values);
+		}
+	}
+	
+	
+	private static String[] names(Iterable<String> cols) {
+		return streamof(cols).toArray(String[]::new);
+	}
+	
 	
 	
 }
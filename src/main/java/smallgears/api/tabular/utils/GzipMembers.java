@@ -0,0 +1,223 @@
+package smallgears.api.tabular.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import lombok.NonNull;
+
+/**
+ * An {@link OutputStream} that compresses blocks of bytes on multiple threads, and writes them in order as a multi-member gzip stream.
+ * <p>
+ * Each block is compressed independently into a complete gzip member, so the output remains readable by any gzip reader.
+ * Compression ratio is slightly lower than for a single member, as blocks do not share history.
+ * <p>
+ * At most a few blocks per thread are in flight: writers block when compression falls behind.
+ */
+public class GzipMembers extends OutputStream {
+
+	public static final int BLOCK_SIZE = 1 << 17;
+
+	//header of members: magic, deflate, no flags, no time, no extra flags, unknown os
+	private static final byte[] HEADER = {0x1f,(byte) 0x8b,8,0,0,0,0,0,0,(byte) 0xff};
+
+	private final OutputStream target;
+
+	private final ExecutorService workers;
+
+	private final ThreadLocal<Deflater> deflaters;
+
+	//in order of submission
+	private final Deque<Future<byte[]>> members = new ArrayDeque<>();
+
+	private final int window;
+
+	private byte[] block = new byte[BLOCK_SIZE];
+	private int length;
+
+	private boolean closed;
+
+	/**
+	 * Creates an instance over a given stream, with a given number of compressing threads and the default compression level.
+	 */
+	public GzipMembers(@NonNull OutputStream target, int threads) {
+
+		this(target,threads,Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Creates an instance over a given stream, with a given number of compressing threads and compression level.
+	 */
+	public GzipMembers(@NonNull OutputStream target, int threads, int level) {
+
+		if (threads<1)
+			throw new IllegalArgumentException("invalid number of threads "+threads);
+
+		this.target=target;
+		this.window=2*threads;
+
+		this.workers = Executors.newFixedThreadPool(threads,r->{
+
+			Thread thread = new Thread(r,"gzip-members");
+
+			thread.setDaemon(true);
+
+			return thread;
+		});
+
+		this.deflaters = ThreadLocal.withInitial(()->new Deflater(level,true));
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+
+		if (length==block.length)
+			push();
+
+		block[length++]=(byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+
+		while (len>0) {
+
+			if (length==block.length)
+				push();
+
+			int n = Math.min(len,block.length-length);
+
+			System.arraycopy(b,off,block,length,n);
+
+			length+=n;
+			off+=n;
+			len-=n;
+		}
+	}
+
+	/**
+	 * Compresses buffered bytes into a member, and writes all the members compressed so far.
+	 */
+	@Override
+	public void flush() throws IOException {
+
+		if (length>0)
+			push();
+
+		while (!members.isEmpty() && members.peek().isDone())
+			target.write(next());
+
+		target.flush();
+	}
+
+	/**
+	 * Writes all pending members, then closes the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (closed)
+			return;
+
+		closed=true;
+
+		try {
+
+			if (length>0)
+				push();
+
+			while (!members.isEmpty())
+				target.write(next());
+		}
+		finally {
+
+			workers.shutdownNow();
+
+			target.close();
+		}
+	}
+
+
+	//////////////////////////////////////////////////////////////////////////////////////////////
+
+
+	private void push() throws IOException {
+
+		byte[] bytes = block;
+		int size = length;
+
+		members.add(workers.submit(()->compress(bytes,size)));
+
+		block = new byte[BLOCK_SIZE];
+		length=0;
+
+		//bounds memory and surfaces failures early
+		while (members.size()>window)
+			target.write(next());
+	}
+
+	private byte[] next() throws IOException {
+
+		try {
+			return members.remove().get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while compressing");
+		}
+		catch(ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+	}
+
+	private byte[] compress(byte[] bytes, int size) {
+
+		Deflater deflater = deflaters.get();
+
+		deflater.reset();
+		deflater.setInput(bytes,0,size);
+		deflater.finish();
+
+		//deflate may slightly expand incompressible data
+		byte[] member = new byte[HEADER.length + size + size/1000 + 64 + 8];
+
+		System.arraycopy(HEADER,0,member,0,HEADER.length);
+
+		int pos = HEADER.length;
+
+		while (!deflater.finished()) {
+
+			if (pos==member.length-8)
+				member = Arrays.copyOf(member,member.length*2);
+
+			pos += deflater.deflate(member,pos,member.length-8-pos);
+		}
+
+		CRC32 crc = new CRC32();
+
+		crc.update(bytes,0,size);
+
+		pos = le((int) crc.getValue(),member,pos);
+		pos = le(size,member,pos);
+
+		return Arrays.copyOf(member,pos);
+	}
+
+	//writes little-endian
+	private static int le(int value, byte[] bytes, int pos) {
+
+		for (int i=0; i<4; i++)
+			bytes[pos++] = (byte) (value >>> (8*i));
+
+		return pos;
+	}
+}
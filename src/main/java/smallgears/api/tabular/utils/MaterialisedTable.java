@@ -1,7 +1,14 @@
 package smallgears.api.tabular.utils;
 
+import static java.util.Arrays.*;
+
+import java.util.function.Predicate;
+
+import lombok.NonNull;
 import smallgears.api.tabular.Row;
 import smallgears.api.tabular.Table;
+import smallgears.api.tabular.operations.Indexes;
+import smallgears.api.tabular.operations.RowIndex;
 
 /**
  * A {@link Row}-mutable {@link Table} that can be iterated over multiple times.
@@ -28,8 +35,30 @@ public interface MaterialisedTable extends Table {
 	 */
 	MaterialisedTable remove(Iterable<Row> rows);
 	
+	/**
+	 * Removes the rows of this table that satisfy a given predicate, in a single pass.
+	 */
+	MaterialisedTable removeIf(Predicate<? super Row> filter);
+	
 	/**
 	 * Returns the number of rows in this table.
 	 */
 	int size();
+	
+	/**
+	 * Returns the indexes registered on this table, which operations reuse rather than building their own.
+	 * <p>
+	 * By default, indexes are not kept: each call returns an empty registry, and operations build their own indexes as before.
+	 * Implementations keep a registry of their own to reuse them.
+	 */
+	default Indexes indexes() {
+		return new Indexes(this);
+	}
+	
+	/**
+	 * Registers an index of this table by given columns, unless one is registered already, and returns it.
+	 */
+	default RowIndex index(@NonNull String ... cols) {
+		return indexes().register(asList(cols));
+	}
 }
@@ -0,0 +1,317 @@
+package smallgears.api.tabular.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Streams that move bytes across threads, so that producing and consuming them overlap.
+ * <p>
+ * Bytes move in blocks through bounded queues: the faster side blocks when it is too far ahead of the other.
+ * Failures on either side surface on the other as {@link IOException}s.
+ */
+@Slf4j
+public class Pipes {
+
+	public static final int BLOCK_SIZE = 1 << 16;
+	public static final int DEPTH = 4;
+
+	//end of blocks
+	private static final byte[] END = new byte[0];
+
+	/**
+	 * Returns a stream that reads a given one ahead of its consumers, on a separate thread.
+	 * <p>
+	 * Typically, the given stream decodes data and the returned one is consumed by a parser.
+	 */
+	public static InputStream ahead(@NonNull InputStream source) {
+
+		return new Ahead(source);
+	}
+
+	/**
+	 * Returns a stream that writes to a given one behind its producers, on a separate thread.
+	 * <p>
+	 * Typically, the given stream encodes data and the returned one is fed by a serialiser.
+	 * Closing the returned stream waits for all data to be written, then closes the given one.
+	 */
+	public static OutputStream behind(@NonNull OutputStream target) {
+
+		return new Behind(target);
+	}
+
+
+	//////////////////////////////////////////////////////////////////////////////////////////////
+
+
+	private static class Ahead extends InputStream {
+
+		final InputStream source;
+
+		final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(DEPTH);
+
+		final Thread producer;
+
+		volatile IOException error;
+
+		byte[] block = new byte[0];
+		int pos;
+		int length;
+
+		boolean done;
+
+		Ahead(InputStream source) {
+
+			this.source=source;
+
+			this.producer = new Thread(this::produce,"pipe-ahead");
+
+			producer.setDaemon(true);
+			producer.start();
+		}
+
+		@Override
+		public int read() throws IOException {
+
+			if (pos==length && !advance())
+				return -1;
+
+			return block[pos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+
+			if (len==0)
+				return 0;
+
+			if (pos==length && !advance())
+				return -1;
+
+			int n = Math.min(len,length-pos);
+
+			System.arraycopy(block,pos,b,off,n);
+
+			pos+=n;
+
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return length-pos;
+		}
+
+		@Override
+		public void close() throws IOException {
+
+			done=true;
+
+			producer.interrupt();
+
+			source.close();
+		}
+
+		private boolean advance() throws IOException {
+
+			if (done)
+				return false;
+
+			try {
+				block = queue.take();
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while reading ahead");
+			}
+
+			if (block==END) {
+
+				done=true;
+
+				if (error!=null)
+					throw error;
+
+				return false;
+			}
+
+			pos=0;
+			length=block.length;
+
+			return true;
+		}
+
+		private void produce() {
+
+			try {
+
+				try {
+
+					byte[] buffer = new byte[BLOCK_SIZE];
+
+					for (int read = source.read(buffer); read>=0; read = source.read(buffer))
+						if (read>0)
+							queue.put(Arrays.copyOf(buffer,read));
+				}
+				catch(IOException e) {
+					error=e;
+				}
+				catch(RuntimeException e) {
+					error=new IOException(e);
+				}
+
+				queue.put(END);
+			}
+			catch(InterruptedException e) {
+				log.debug("read-ahead pipe stopped by consumer");
+			}
+		}
+	}
+
+	private static class Behind extends OutputStream {
+
+		final OutputStream target;
+
+		final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(DEPTH);
+
+		final Thread consumer;
+
+		volatile IOException error;
+
+		byte[] block = new byte[BLOCK_SIZE];
+		int length;
+
+		boolean closed;
+
+		Behind(OutputStream target) {
+
+			this.target=target;
+
+			this.consumer = new Thread(this::consume,"pipe-behind");
+
+			consumer.setDaemon(true);
+			consumer.start();
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+
+			if (length==block.length)
+				push();
+
+			block[length++]=(byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+
+			while (len>0) {
+
+				if (length==block.length)
+					push();
+
+				int n = Math.min(len,block.length-length);
+
+				System.arraycopy(b,off,block,length,n);
+
+				length+=n;
+				off+=n;
+				len-=n;
+			}
+		}
+
+		/**
+		 * Hands buffered bytes over to the writing thread, without waiting for them to be written.
+		 */
+		@Override
+		public void flush() throws IOException {
+
+			if (length>0)
+				push();
+		}
+
+		@Override
+		public void close() throws IOException {
+
+			if (closed)
+				return;
+
+			closed=true;
+
+			try {
+				flush();
+			}
+			finally {
+
+				try {
+					queue.put(END);
+					consumer.join();
+				}
+				catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted while writing behind");
+				}
+			}
+
+			if (error!=null)
+				throw error;
+		}
+
+		private void push() throws IOException {
+
+			put(block.length==length ? block : Arrays.copyOf(block,length));
+
+			block = new byte[BLOCK_SIZE];
+			length=0;
+		}
+
+		private void put(byte[] bytes) throws IOException {
+
+			if (error!=null)
+				throw error;
+
+			try {
+				queue.put(bytes);
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while writing behind");
+			}
+		}
+
+		//drains blocks up to the end, even after failures, so that producers never block
+		private void consume() {
+
+			try {
+
+				for (byte[] bytes = queue.take(); bytes!=END; bytes = queue.take())
+					if (error==null)
+						try {
+							target.write(bytes);
+						}
+						catch(IOException e) {
+							error=e;
+						}
+						catch(RuntimeException e) {
+							error=new IOException(e);
+						}
+
+				target.close();
+			}
+			catch(IOException e) {
+				if (error==null)
+					error=e;
+			}
+			catch(InterruptedException e) {
+				log.debug("write-behind pipe interrupted");
+			}
+		}
+	}
+}
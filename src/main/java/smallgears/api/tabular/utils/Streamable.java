@@ -2,6 +2,7 @@ package smallgears.api.tabular.utils;
 
 import static smallgears.api.tabular.utils.TableUtils.*;
 
+import java.util.Spliterator;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
 
@@ -26,6 +27,20 @@ public interface Streamable<T> extends Iterable<T> {
 		return streamof(this, true);
 	}
 	
+	/**
+	 * Returns a spliterator over the values associated with this type.
+	 * <p>
+	 * By default, it splits off batches of growing size from {@link #iterator()}.
+	 * Types that know their size and can access values by position should return a sized spliterator instead.
+	 * 
+	 * @see TableUtils#range(int, java.util.function.IntFunction)
+	 */
+	@Override
+	default Spliterator<T> spliterator() {
+		
+		return batches(iterator());
+	}
+	
 	/**
 	 * @see Stream#forEach(Consumer)
 	 */
@@ -3,8 +3,19 @@ package smallgears.api.tabular.utils;
 import static java.util.stream.Collectors.*;
 import static java.util.stream.StreamSupport.*;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
 import java.util.stream.Stream;
 
+import lombok.NonNull;
+import smallgears.api.tabular.Row;
+
 /**
  * Table processing facilities.
  */
@@ -25,4 +36,174 @@ public class TableUtils {
 		return vals.filter(s->s!=null).collect(joining());
 	}
 	
+	/**
+	 * Returns a predicate that matches rows equal to given ones, as many times as they occur.
+	 * <p>
+	 * Used with {@link MaterialisedTable#removeIf(Predicate)}, it removes the first equal row for each given row, in a single pass.
+	 * The predicate is stateful and can be used only once.
+	 */
+	public static Predicate<Row> occurrences(@NonNull Iterable<Row> rows) {
+		
+		Map<Row,Integer> targets = new HashMap<>();
+		
+		rows.forEach(r -> targets.merge(r,1,Integer::sum));
+		
+		return row -> {
+			
+			if (targets.isEmpty())
+				return false;
+			
+			Integer count = targets.get(row);
+			
+			if (count==null)
+				return false;
+			
+			if (count==1)
+				targets.remove(row);
+			else
+				targets.put(row,count-1);
+			
+			return true;
+		};
+	}
+	
+	/**
+	 * Returns a spliterator over the elements at positions <code>0</code> to <code>size-1</code>.
+	 * <p>
+	 * The spliterator knows its size and splits in halves, so parallel streams divide work evenly.
+	 */
+	public static <T> Spliterator<T> range(int size, @NonNull IntFunction<T> element) {
+		
+		return new Range<>(0,size,element);
+	}
+	
+	/**
+	 * Returns a spliterator over the elements of an iterator, which splits off batches of growing size.
+	 * <p>
+	 * Batches start small, so that short sources are still divided, and double up to a limit, so that long ones are divided cheaply.
+	 */
+	public static <T> Spliterator<T> batches(@NonNull Iterator<T> elements) {
+		
+		return new Batches<>(elements);
+	}
+	
+	
+	////////////////////////////////////////////////////////////////////////////////////////////
+	
+	
+	private static class Range<T> implements Spliterator<T> {
+		
+		final IntFunction<T> element;
+		
+		int from;
+		final int to;
+		
+		Range(int from, int to, IntFunction<T> element) {
+			this.from=from;
+			this.to=to;
+			this.element=element;
+		}
+		
+		@Override
+		public boolean tryAdvance(Consumer<? super T> action) {
+			
+			if (from>=to)
+				return false;
+			
+			action.accept(element.apply(from++));
+			
+			return true;
+		}
+		
+		@Override
+		public void forEachRemaining(Consumer<? super T> action) {
+			
+			for (; from<to; from++)
+				action.accept(element.apply(from));
+		}
+		
+		@Override
+		public Spliterator<T> trySplit() {
+			
+			int middle = (from+to)>>>1;
+			
+			if (middle<=from)
+				return null;
+			
+			Range<T> prefix = new Range<>(from,middle,element);
+			
+			from=middle;
+			
+			return prefix;
+		}
+		
+		@Override
+		public long estimateSize() {
+			return to-from;
+		}
+		
+		@Override
+		public int characteristics() {
+			return ORDERED | SIZED | SUBSIZED;
+		}
+	}
+	
+	private static class Batches<T> implements Spliterator<T> {
+		
+		static final int MIN_BATCH = 1 << 6;
+		static final int MAX_BATCH = 1 << 16;
+		
+		final Iterator<T> elements;
+		
+		int batch = MIN_BATCH;
+		
+		Batches(Iterator<T> elements) {
+			this.elements=elements;
+		}
+		
+		@Override
+		public boolean tryAdvance(Consumer<? super T> action) {
+			
+			if (!elements.hasNext())
+				return false;
+			
+			action.accept(elements.next());
+			
+			return true;
+		}
+		
+		@Override
+		public void forEachRemaining(Consumer<? super T> action) {
+			
+			elements.forEachRemaining(action);
+		}
+		
+		@Override
+		public Spliterator<T> trySplit() {
+			
+			if (!elements.hasNext())
+				return null;
+			
+			Object[] prefix = new Object[batch];
+			
+			int n = 0;
+			
+			while (n<batch && elements.hasNext())
+				prefix[n++]=elements.next();
+			
+			batch = Math.min(2*batch,MAX_BATCH);
+			
+			return Spliterators.spliterator(prefix,0,n,ORDERED);
+		}
+		
+		@Override
+		public long estimateSize() {
+			return Long.MAX_VALUE;
+		}
+		
+		@Override
+		public int characteristics() {
+			return ORDERED;
+		}
+	}
 }
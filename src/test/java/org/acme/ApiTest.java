@@ -6,12 +6,15 @@ import static java.util.stream.Collectors.*;
 import static org.junit.Assert.*;
 import static smallgears.api.tabular.dsl.Tables.*;
 
+import java.util.HashSet;
 import java.util.List;
 
 import org.junit.Test;
 
 import smallgears.api.tabular.Column;
+import smallgears.api.tabular.Handle;
 import smallgears.api.tabular.Row;
+import smallgears.api.tabular.Schema;
 import smallgears.api.tabular.Table;
 
 public class ApiTest {
@@ -53,6 +56,84 @@ public class ApiTest {
 
 	}
 	
+	@Test
+	public void schema_rows() {
+		
+		Schema schema = new Schema(asList(col("c1"),col("c2")));
+		
+		Row r = schema.row("v1",null);
+		
+		assertSame(schema, r.schema());
+		assertEquals("v1",r.get("c1"));
+		assertFalse(r.has("c2"));
+		assertEquals(1,r.size());
+		
+		//behaves like any other row, including for columns outside schema
+		assertEquals(row().col("c1","v1").end(), r);
+		assertEquals(row().col("c1","v1").end().hashCode(), r.hashCode());
+		
+		r.set("c2","v2").set("c3","v3");
+		
+		assertEquals(row().col("c1","v1").col("c2","v2").col("c3","v3").end(), r);
+		assertEquals(new HashSet<>(asList("c1","c2","c3")), r.columns());
+		
+		Row copy = new Row(r);
+		
+		assertSame(schema, copy.schema());
+		assertEquals(row().col("c2","v2").end(), copy.remove("c1","c3"));
+		assertEquals(3, r.size());
+		
+	}
+	
+	@Test
+	public void tables_bind_rows_to_schema() {
+		
+		Row r = row().col("c1","1").col("c3","3").end();
+		
+		Table t = table().cols("c1","c2").rows(r);
+		
+		//in place
+		assertSame(r, t.iterator().next());
+		assertNotNull(r.schema());
+		assertEquals(asList("c1","c2"), r.schema().names());
+		assertEquals(row().col("c1","1").col("c3","3").end(), r);
+		
+		Table parsed = csv().parse().in("c1,c2\n1,2\n3,4").materialise();
+		
+		assertSame(parsed.stream().findFirst().get().schema(), parsed.stream().skip(1).findFirst().get().schema());
+	}
+	
+	@Test
+	public void handles() {
+		
+		Table t = table($("c1","c2"),$("1","2"),$("3","4"));
+		
+		Handle c1 = t.handle("c1");
+		Handle c3 = t.handle("c3");
+		
+		assertTrue(c1.bound());
+		assertFalse(c3.bound());
+		
+		for (Row r : t) {
+			
+			assertEquals(r.get("c1"), r.get(c1));
+			assertTrue(r.has(c1));
+			assertFalse(r.has(c1,c3));
+			
+			r.set(c1,"changed").set(c3,"3");
+			
+			assertEquals("changed",r.get("c1"));
+			assertEquals("3",r.get(c3));
+			assertEquals(row().col("c1","changed").col("c3","3").end(),r.extract(c1,c3));
+		}
+		
+		//fall back to lookups on other rows
+		Row other = row().col("c1","v1").end();
+		
+		assertEquals("v1",other.get(c1));
+		assertEquals("none",other.getOr(c3,"none"));
+	}
+	
 	@Test
 	public void tables() {
 		
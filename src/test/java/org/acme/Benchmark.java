@@ -0,0 +1,6 @@
+package org.acme;
+
+/**
+ * Tags tests that measure throughput rather than check behaviour, which run only in the <code>benchmarks</code> profile.
+ */
+public interface Benchmark {}
@@ -0,0 +1,522 @@
+package org.acme;
+
+import static java.lang.String.*;
+import static java.util.Arrays.*;
+import static java.util.stream.Collectors.*;
+import static smallgears.api.tabular.dsl.Tables.*;
+import static smallgears.api.tabular.operations.TableOperations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
+
+import lombok.SneakyThrows;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import smallgears.api.tabular.Column;
+import smallgears.api.tabular.Compression;
+import smallgears.api.tabular.Csv;
+import smallgears.api.tabular.Handle;
+import smallgears.api.tabular.Row;
+import smallgears.api.tabular.Table;
+import smallgears.api.tabular.impl.ColumnarTable;
+import smallgears.api.tabular.impl.OffHeapTable;
+import smallgears.api.tabular.impl.SimpleTable;
+import smallgears.api.tabular.impl.SpillingTable;
+import smallgears.api.tabular.utils.MaterialisedTable;
+import au.com.bytecode.opencsv.CSVReader;
+import au.com.bytecode.opencsv.CSVWriter;
+
+/**
+ * Throughput comparisons, not part of the regular test suite.
+ * <p>
+ * They print measurements rather than check them, and run only in the benchmarks profile, with <code>mvn test -Pbenchmarks</code>.
+ */
+@Category(Benchmark.class)
+public class Benchmarks {
+
+	static final int rows = 200_000;
+	static final int cols = 12;
+
+	static final byte[] data = csvdata();
+
+
+	//   parsing    //////////////////////////////////////////////////////////////////////////
+
+	@Test
+	public void parsing() {
+
+		measure("opencsv", data.length, () -> {
+
+			CSVReader reader = new CSVReader(new InputStreamReader(new ByteArrayInputStream(data),"UTF-8"));
+
+			String[] header = reader.readNext();
+
+			int count=0;
+
+			for (String[] vals = reader.readNext(); vals!=null; vals=reader.readNext()) {
+
+				Map<String,String> map = new HashMap<>();
+
+				for (int i=0; i<header.length && i<vals.length; i++)
+					map.put(header[i],vals[i]);
+
+				new Row(map);
+
+				count++;
+			}
+
+			reader.close();
+
+			return count;
+		});
+
+		measure("tokenizer", data.length, () -> {
+
+			Table table = csv().encoding("UTF-8").parse().in(new ByteArrayInputStream(data));
+
+			int count=0;
+
+			for (@SuppressWarnings("unused") Row row : table)
+				count++;
+
+			return count;
+		});
+	}
+
+
+	//   access    //////////////////////////////////////////////////////////////////////////
+
+	@Test
+	public void column_access() {
+
+		Table table = csv().encoding("UTF-8").parse().in(new ByteArrayInputStream(data)).materialise();
+
+		String[] names = table.columns().stream().map(Column::name).toArray(String[]::new);
+		Column[] columns = table.columns().toArray(new Column[0]);
+		Handle[] handles = table.columns().stream().map(c->table.handle(c.name())).toArray(Handle[]::new);
+
+		double cells = rows*cols*10/1e6;
+
+		measure("by name", cells, "Mcells", () -> {
+
+			int count = 0;
+
+			for (int i=0; i<10; i++)
+				for (Row row : table)
+					for (String name : names)
+						if (row.get(name)!=null)
+							count++;
+
+			return count;
+		});
+
+		measure("by column", cells, "Mcells", () -> {
+
+			int count = 0;
+
+			for (int i=0; i<10; i++)
+				for (Row row : table)
+					for (Column col : columns)
+						if (row.get(col)!=null)
+							count++;
+
+			return count;
+		});
+
+		measure("by handle", cells, "Mcells", () -> {
+
+			int count = 0;
+
+			for (int i=0; i<10; i++)
+				for (Row row : table)
+					for (Handle handle : handles)
+						if (row.get(handle)!=null)
+							count++;
+
+			return count;
+		});
+	}
+
+
+	//   read-ahead    //////////////////////////////////////////////////////////////////////////
+
+	@Test
+	public void readahead() {
+
+		double mrows = rows/1e6;
+
+		measure("on demand", mrows, "Mrows", () -> csv().encoding("UTF-8").parse().in(new ByteArrayInputStream(data)).stream().mapToLong(Benchmarks::work).sum());
+
+		measure("read-ahead", mrows, "Mrows", () -> csv().encoding("UTF-8").readahead(4).parse().in(new ByteArrayInputStream(data)).stream().mapToLong(Benchmarks::work).sum());
+	}
+
+
+	//   pipelines    //////////////////////////////////////////////////////////////////////////
+
+	@Test
+	public void pipelines() {
+
+		double mrows = rows/1e6;
+
+		measure("chained with", mrows, "Mrows", () -> csv().encoding("UTF-8").parse().in(new ByteArrayInputStream(data))
+															.with(r->r.set("x","1")).with(r->r.set("y","2")).with(r->r.extract("column0","x"))
+															.stream().count());
+
+		measure("fused pipeline", mrows, "Mrows", () -> csv().encoding("UTF-8").parse().in(new ByteArrayInputStream(data))
+															.project("column0").map(r->r.set("x","1")).map(r->r.set("y","2")).project("column0","x")
+															.stream().count());
+	}
+
+
+	//   parallel scaling    //////////////////////////////////////////////////////////////////////////
+
+	@Test
+	public void parallel_streams() {
+
+		Table table = csv().encoding("UTF-8").parse().in(new ByteArrayInputStream(data)).materialise();
+
+		double mrows = rows/1e6;
+
+		for (Function<Table,MaterialisedTable> form : asList((Function<Table,MaterialisedTable>) SimpleTable::new, ColumnarTable::new)) {
+
+			MaterialisedTable t = table.materialise(form);
+
+			String name = t.getClass().getSimpleName();
+
+			measure(name+" sequential", mrows, "Mrows", () -> t.stream().mapToLong(Benchmarks::work).sum());
+			measure(name+" parallel", mrows, "Mrows", () -> t.parallelStream().mapToLong(Benchmarks::work).sum());
+		}
+
+		measure("streamed parallel", mrows, "Mrows", () -> csv().encoding("UTF-8").parse().in(new ByteArrayInputStream(data)).parallelStream().mapToLong(Benchmarks::work).sum());
+	}
+
+	//some cpu-bound work per row
+	static long work(Row row) {
+
+		long hash = 0;
+
+		for (String val : row)
+			for (int i=0; i<val.length(); i++)
+				hash = 31*hash + (val.charAt(i)*0x9E3779B97F4A7C15L >>> 7);
+
+		return hash;
+	}
+
+
+	//   serialisation    //////////////////////////////////////////////////////////////////////////
+
+	@Test
+	public void serialisation() {
+
+		Table table = csv().encoding("UTF-8").parse().in(new ByteArrayInputStream(data)).materialise();
+
+		List<Column> columns = table.columns();
+
+		Callable<?> opencsv = () -> {
+
+			ByteArrayOutputStream stream = new ByteArrayOutputStream(data.length);
+
+			CSVWriter writer = new CSVWriter(new OutputStreamWriter(stream,"UTF-8"));
+
+			writer.writeNext(columns.stream().map(Column::name).toArray(String[]::new));
+
+			table.stream().map(r->columns.stream().map(c->r.get(c)).collect(toList()))
+						  .map(vals->vals.toArray(new String[0]))
+						  .forEachOrdered(writer::writeNext);
+
+			writer.close();
+
+			return stream.size();
+		};
+
+		Callable<?> writer = () -> {
+
+			ByteArrayOutputStream stream = new ByteArrayOutputStream(data.length);
+
+			csv().encoding("UTF-8").serialise(table).to(stream);
+
+			return stream.size();
+		};
+
+		measure("opencsv", data.length, opencsv);
+		allocation("opencsv", rows, opencsv);
+
+		measure("writer", data.length, writer);
+		allocation("writer", rows, writer);
+
+		int threads = Math.max(2,Runtime.getRuntime().availableProcessors());
+
+		measure("parallel writer", data.length, () -> {
+
+			ByteArrayOutputStream stream = new ByteArrayOutputStream(data.length);
+
+			csv().encoding("UTF-8").parallelism(threads).serialise(table).to(stream);
+
+			return stream.size();
+		});
+	}
+
+
+	//   compression    //////////////////////////////////////////////////////////////////////////
+
+	@Test
+	public void compression() {
+
+		Table table = csv().encoding("UTF-8").parse().in(new ByteArrayInputStream(data)).materialise();
+
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		measure("gzip", data.length, () -> compressed(csv().encoding("UTF-8").compression(Compression.GZIP), table));
+
+		measure("gzip members", data.length, () -> compressed(csv().encoding("UTF-8").compression(Compression.GZIP).parallelism(Math.max(2,threads)), table));
+	}
+
+	static int compressed(Csv csv, Table table) {
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+		csv.serialise(table).to(stream);
+
+		return stream.size();
+	}
+
+
+	//   joins    //////////////////////////////////////////////////////////////////////////
+
+	@Test
+	public void joins() {
+
+		Table table = csv().encoding("UTF-8").parse().in(new ByteArrayInputStream(data)).materialise();
+
+		Table target = table.with(r->new Row().set("column1",r.get("column1")).set("column2",r.get("column2")).set("joined","x")).materialise();
+
+		measure("two-column join", rows/1e6, "Mrows", () -> {
+
+			Table source = table.with(Row::new).materialise();
+
+			join(source).with(target).using((s,t)->{}).basedOn(match("column1"),match("column2"));
+
+			return source;
+		});
+
+		int threads = Math.max(2,Runtime.getRuntime().availableProcessors());
+
+		measure("two-column join, "+threads+" threads", rows/1e6, "Mrows", () -> {
+
+			Table source = table.with(Row::new).materialise();
+
+			join(source).with(target).using((s,t)->{}).parallelism(threads).basedOn(match("column1"),match("column2"));
+
+			return source;
+		});
+
+		long budget = target.stream().mapToLong(SpillingTable::cost).sum()/8;
+
+		measure("two-column join, budget/8", rows/1e6, "Mrows", () -> {
+
+			Table source = table.with(Row::new).materialise();
+
+			join(source).with(target).using((s,t)->{}).budget(budget).basedOn(match("column1"),match("column2"));
+
+			return source;
+		});
+
+		target.materialise().index("column1","column2");
+
+		measure("two-column join, registered", rows/1e6, "Mrows", () -> {
+
+			Table source = table.with(Row::new).materialise();
+
+			join(source).with(target).using((s,t)->{}).basedOn(match("column1"),match("column2"));
+
+			return source;
+		});
+
+		Table reference = csv().encoding("UTF-8").parse().in(new ByteArrayInputStream(refdata())).materialise();
+
+		measure("group by", rows/1e6, "Mrows", () -> group(reference).by("country"));
+
+		measure("index all", rows/1e6, "Mrows", () -> indexall(reference).using("country"));
+	}
+
+
+	//   removal    //////////////////////////////////////////////////////////////////////////
+
+	@Test
+	public void removal() {
+
+		Table table = csv().encoding("UTF-8").parse().in(new ByteArrayInputStream(data)).materialise();
+
+		List<Row> half = new ArrayList<>();
+
+		int i=0;
+		for (Row row : table)
+			if (i++%2==0)
+				half.add(new Row(row));
+
+		measure("remove half", rows/2/1e6, "Mrows", () -> table.materialise(SimpleTable::new).remove(half));
+	}
+
+
+	//   memory    //////////////////////////////////////////////////////////////////////////
+
+	@Test
+	public void materialised_heap() {
+
+		footprint("map rows", () -> {
+
+			Table table = csv().encoding("UTF-8").parse().in(new ByteArrayInputStream(data));
+
+			List<Row> rows = new ArrayList<>();
+
+			for (Row row : table) {
+
+				Map<String,String> map = new HashMap<>();
+
+				row.forEach(map::put);
+
+				rows.add(new Row(map));
+			}
+
+			return rows;
+		});
+
+		footprint("schema rows", () -> csv().encoding("UTF-8").parse().in(new ByteArrayInputStream(data)).materialise());
+		
+		footprint("columnar", () -> csv().encoding("UTF-8").parse().in(new ByteArrayInputStream(data)).materialise(ColumnarTable::new));
+		
+		footprint("off-heap", () -> csv().encoding("UTF-8").parse().in(new ByteArrayInputStream(data)).materialise(OffHeapTable::new));
+		
+		byte[] refdata = refdata();
+		
+		footprint("ref schema rows", () -> csv().encoding("UTF-8").parse().in(new ByteArrayInputStream(refdata)).materialise());
+		
+		footprint("ref columnar", () -> csv().encoding("UTF-8").parse().in(new ByteArrayInputStream(refdata)).materialise(ColumnarTable::new));
+	}
+
+
+	////   helpers    /////////////////////////////////////////////////////////////////
+
+
+	static byte[] csvdata() {
+
+		StringBuilder $ = new StringBuilder();
+
+		for (int c=0; c<cols; c++)
+			$.append(c==0?"":",").append("column").append(c);
+
+		$.append("\n");
+
+		for (int r=0; r<rows; r++) {
+
+			for (int c=0; c<cols; c++)
+				$.append(c==0?"":",").append(c%3==0 ? "\"quoted, value "+r+"\"" : "value-"+(r*c));
+
+			$.append("\n");
+		}
+
+		return $.toString().getBytes();
+	}
+
+	//reference-like data: mostly repeated values
+	static byte[] refdata() {
+		
+		String[] countries = {"IT","FR","DE","ES","GB","US","CN","JP","BR","IN"};
+		String[] statuses = {"active","retired","pending"};
+		String[] units = {"kg","t","m3","l"};
+		
+		StringBuilder $ = new StringBuilder("id,country,status,unit\n");
+
+		for (int r=0; r<rows; r++)
+			$.append(r).append(',')
+			 .append(countries[r%countries.length]).append(',')
+			 .append(statuses[r%statuses.length]).append(',')
+			 .append(units[r%units.length]).append('\n');
+
+		return $.toString().getBytes();
+	}
+
+	/**
+	 * Reports the heap retained by the result of a task.
+	 */
+	@SneakyThrows
+	static void footprint(String name, Callable<?> task) {
+
+		long before = used();
+
+		Object result = task.call();
+
+		long after = used();
+
+		System.out.println(format("%-20s %8.1f MB retained (%s)",name,(after-before)/(double)(1<<20),result.getClass().getSimpleName()));
+	}
+
+	static long used() {
+
+		Runtime runtime = Runtime.getRuntime();
+
+		for (int i=0; i<3; i++)
+			System.gc();
+
+		return runtime.totalMemory()-runtime.freeMemory();
+	}
+
+	/**
+	 * Runs a task once to warm up, then reports the bytes it allocates per row on the calling thread.
+	 */
+	@SneakyThrows
+	static void allocation(String name, long rows, Callable<?> task) {
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+		task.call();
+
+		long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+
+		task.call();
+
+		long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+		System.out.println(format("%-20s %8.1f bytes/row",name,allocated/(double) rows));
+	}
+
+	/**
+	 * Runs a task a few times to warm up, then reports the average throughput of as many runs.
+	 */
+	static void measure(String name, long bytes, Callable<?> task) {
+
+		measure(name, bytes/(double)(1<<20), "MB", task);
+	}
+
+	/**
+	 * Runs a task a few times to warm up, then reports the average throughput of as many runs, in given units.
+	 */
+	@SneakyThrows
+	static void measure(String name, double units, String unit, Callable<?> task) {
+
+		int runs = 5;
+
+		for (int i=0; i<runs; i++)
+			task.call();
+
+		long start = System.nanoTime();
+
+		for (int i=0; i<runs; i++)
+			task.call();
+
+		double secs = (System.nanoTime()-start)/1e9/runs;
+
+		System.out.println(format("%-20s %8.1f ms/run %8.1f %s/s",name,secs*1000,units/secs,unit));
+	}
+}
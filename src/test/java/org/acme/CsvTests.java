@@ -1,21 +1,37 @@
 package org.acme;
 
 import static java.nio.file.Files.*;
+import static java.util.Arrays.*;
+import static java.util.stream.Collectors.*;
 import static org.junit.Assert.*;
 import static smallgears.api.tabular.dsl.Tables.*;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
 
 import lombok.SneakyThrows;
 
 import org.junit.Test;
 
 import smallgears.api.tabular.Column;
+import smallgears.api.tabular.Compression;
 import smallgears.api.tabular.Csv;
+import smallgears.api.tabular.Row;
 import smallgears.api.tabular.Table;
+import smallgears.api.tabular.impl.CsvIndex;
+import smallgears.api.tabular.impl.CsvTable;
+import smallgears.api.tabular.impl.Pipeline;
 
 public class CsvTests {
 
@@ -159,6 +175,243 @@ public class CsvTests {
 	}
 	
 	
+	@Test
+	public void can_project_arbitrary_columns() {
+		
+		InputStream stream = some(csv().with("c1","c2","c3","c4"),
+				$("1","2","3","4"),
+				$("5","6","7","8"));
+		
+		/////////////////////////////////////////////////////////////
+		
+		Table parsed = table().from(csv().project("c4").project(1)).in(stream).materialise();
+		
+		Table expected = table().cols("c2","c4").rows($("2","4"),$("6","8"));
+		
+		assertEquals(expected,parsed);
+		
+	}
+	
+	@Test
+	public void pipelines_push_projection_and_limit_into_parser() {
+		
+		InputStream stream = some(csv().with("c1","c2","c3"),
+				$("1","2","3"),
+				$("4","5","6"),
+				$("7","8","9"));
+		
+		/////////////////////////////////////////////////////////////
+		
+		Pipeline pipeline = table().from(csv()).in(stream).project("c3","c1").limit(2).map($->$.set("c4","x"));
+		
+		String plan = pipeline.plan();
+		
+		assertTrue(plan, plan.startsWith("CsvTable [project [c3, c1], limit 2]"));
+		assertTrue(plan, plan.contains("project [c3, c1] (pushed down)"));
+		assertTrue(plan, plan.contains("limit 2 (pushed down)"));
+		
+		List<Row> rows = pipeline.stream().collect(toList());
+		
+		assertEquals(asList(new Row().set("c3","3").set("c1","1").set("c4","x"),
+							new Row().set("c3","6").set("c1","4").set("c4","x")), rows);
+		
+		//nothing pushed below filters
+		stream = some(csv().with("c1","c2"),$("1","2"),$("3","4"));
+		
+		pipeline = table().from(csv()).in(stream).filter($->$.get("c2").equals("4")).project("c1");
+		
+		assertFalse(pipeline.plan(), pipeline.plan().contains("pushed"));
+		assertEquals(asList(new Row().set("c1","3")), pipeline.stream().collect(toList()));
+	}
+	
+	@Test @SneakyThrows
+	public void parse_ahead_of_consumption() {
+		
+		Csv csv = csv().with("c1","c2");
+		
+		List<String[]> records = new ArrayList<>();
+		
+		for (int i=0; i<10_000; i++)
+			records.add($(""+i,"v"+i));
+		
+		Table expected = table().from(csv).in(some(csv,records.toArray(new String[0][]))).materialise();
+		
+		/////////////////////////////////////////////////////////////
+		
+		Table parsed = table().from(csv().readahead(2).batch(100)).in(some(csv,records.toArray(new String[0][]))).materialise();
+		
+		assertEquals(expected,parsed);
+		
+		//errors reach consumers
+		InputStream failing = new SequenceInputStream(some(csv,records.toArray(new String[0][])), new InputStream() {
+			
+			@Override
+			public int read() {
+				throw new IllegalStateException("boom");
+			}
+		});
+		
+		try {
+			table().from(csv().readahead(2).batch(100)).in(failing).stream().count();
+			fail();
+		}
+		catch(IllegalStateException e) {
+			assertEquals("boom", e.getMessage());
+		}
+		
+		//consumers can stop early
+		CsvTable table = (CsvTable) table().from(csv().readahead(1).batch(10)).in(some(csv,records.toArray(new String[0][])));
+		
+		assertEquals("0", table.iterator().next().get("c1"));
+		
+		table.close();
+		
+		assertFalse(table.iterator().hasNext());
+		
+		//or abandon iteration, without holding threads
+		for (int i=0; i<5; i++)
+			assertEquals("0", table().from(csv().readahead(1).batch(10)).in(some(csv,records.toArray(new String[0][]))).stream().findFirst().get().get("c1"));
+		
+		long deadline = System.currentTimeMillis()+5000;
+		
+		while (producing() && System.currentTimeMillis()<deadline)
+			Thread.sleep(10);
+		
+		assertFalse(producing());
+		
+		//and resume it later
+		CsvTable resumed = (CsvTable) table().from(csv().readahead(1).batch(10)).in(some(csv,records.toArray(new String[0][])));
+		
+		assertEquals("0", resumed.stream().findFirst().get().get("c1"));
+		
+		Thread.sleep(50);
+		
+		assertEquals(records.size()-1, resumed.stream().count());
+	}
+	
+	//threads of read-aheads
+	private static boolean producing() {
+		
+		return Thread.getAllStackTraces().values().stream().flatMap(Arrays::stream).anyMatch(f->f.getClassName().endsWith("ReadAhead") && f.getMethodName().equals("produce"));
+	}
+	
+	@Test
+	@SneakyThrows
+	public void replay_files() {
+		
+		Path path = createTempFile("replay", ".csv");
+		
+		try {
+			
+			write(path, "c1,c2\n1,2\n3,4\n".getBytes());
+			
+			for (Csv csv : asList(csv(), csv().encoding("UTF-8").parallelism(2))) {
+			
+				Table replayed = csv.parse().replay(path);
+				
+				assertTrue(replayed.replayable());
+				assertFalse(replayed.materialised());
+				
+				Table expected = table().cols("c1","c2").rows($("1","2"),$("3","4"));
+				
+				assertEquals(expected.columns(), replayed.columns());
+				
+				for (int pass=0; pass<3; pass++)
+					assertEquals(expected.stream().collect(toList()), replayed.stream().collect(toList()));
+				
+				//nested passes do not end each other
+				List<String> pairs = new ArrayList<>();
+				
+				for (Row a : replayed)
+					for (Row b : replayed)
+						pairs.add(a.get("c1")+b.get("c1"));
+				
+				assertEquals(asList("11","13","31","33"), pairs);
+			}
+			
+			//overlapping passes, beyond buffered data
+			StringBuilder data = new StringBuilder("c1,c2\n");
+			
+			for (int i=0; i<50000; i++)
+				data.append(i).append(",some value ").append(i).append("\n");
+			
+			write(path, data.toString().getBytes());
+			
+			for (Csv csv : asList(csv(), csv().encoding("UTF-8").parallelism(2))) {
+				
+				Table replayed = csv.parse().replay(path);
+				
+				Iterator<Row> outer = replayed.iterator();
+				
+				outer.next();
+				
+				assertEquals(50000, replayed.stream().count());
+				
+				int count = 1;
+				
+				for (; outer.hasNext(); outer.next())
+					count++;
+				
+				assertEquals(50000, count);
+				
+				//abandoned passes are released on close
+				replayed.iterator().next();
+				
+				((AutoCloseable) replayed).close();
+			}
+		}
+		finally {
+			delete(path);
+		}
+	}
+	
+	@Test
+	@SneakyThrows
+	public void page_through_indexed_files() {
+		
+		Path path = createTempFile("indexed", ".csv");
+		
+		try {
+			
+			StringBuilder data = new StringBuilder("c1,c2\n");
+			
+			for (int i=0; i<5000; i++)
+				data.append(i).append(",\"multi\nline, ").append(i).append("\"\n");
+			
+			write(path, data.toString().getBytes());
+			
+			Table expected = csv().parse().at(path).materialise();
+			
+			List<Row> page = expected.stream().skip(503).limit(20).collect(toList());
+			
+			//without index
+			assertEquals(page, csv().offset(503).rows(20).parse().at(path).stream().collect(toList()));
+			
+			CsvIndex index = CsvIndex.of(csv(), path, 10);
+			
+			assertEquals(5000, index.rows());
+			assertEquals(500, index.samples());
+			assertTrue(exists(CsvIndex.sidecar(path)));
+			assertTrue(CsvIndex.load(csv(), path).isPresent());
+			
+			//with index
+			assertEquals(page, csv().offset(503).rows(20).parse().at(path).stream().collect(toList()));
+			assertEquals(0, csv().offset(5000).parse().at(path).stream().count());
+			
+			//split at sampled rows
+			assertEquals(expected, csv().encoding("UTF-8").parallelism(4).parse().at(path).materialise());
+			
+			//stale after changes
+			write(path, "c1,c2\n1,2\n".getBytes());
+			
+			assertFalse(CsvIndex.load(csv(), path).isPresent());
+		}
+		finally {
+			deleteIfExists(CsvIndex.sidecar(path));
+			delete(path);
+		}
+	}
+	
 	@Test
 	public void can_also_subset_data_horizontally() {
 		
@@ -179,6 +432,30 @@ public class CsvTests {
 		
 	}
 	
+	@Test
+	public void iterations_end_with_the_data() {
+		
+		for (Csv csv : asList(csv(), csv().rows(1))) {
+			
+			InputStream stream = some(csv().with("c1","c2"),
+					$("1","2"),
+					$("3","4"));
+			
+			////////////////////////////////////////////////////////////
+			
+			Iterator<Row> rows = table().from(csv).in(stream).iterator();
+			
+			while (rows.hasNext())
+				rows.next();
+			
+			try {
+				rows.next();
+				fail();
+			}
+			catch(NoSuchElementException expected) {}
+		}
+	}
+	
 	
 	@Test
 	public void offers_parsing_options() {
@@ -201,6 +478,65 @@ public class CsvTests {
 	
 	
 	
+	@Test
+	public void parses_quoted_values() {
+		
+		InputStream stream = new ByteArrayInputStream("c1,c2\r\n\"1,1\",\"2\"\"2\"\r\n\"3\n3\",\"\"\r\n".getBytes());
+		
+		////////////////////////////////////////////////////////////
+		
+		Table parsed = table().from(csv()).in(stream).materialise();
+		
+		Table expected = table().with($("c1","c2"),$("1,1","2\"2"),$("3\n3",""));
+		
+		assertEquals(expected, parsed);
+		
+	}
+	
+	@Test
+	public void parses_records_larger_than_buffer() {
+		
+		StringBuilder $ = new StringBuilder();
+		
+		for (int i=0; i<100000; i++)
+			$.append("v").append(i%10);
+		
+		String large = $.toString();
+		
+		InputStream stream = some(csv().with("c1","c2"),
+				$("1",large),
+				$(large,"2"));
+		
+		////////////////////////////////////////////////////////////
+		
+		Table parsed = table().from(csv()).in(stream).materialise();
+		
+		Table expected = table().with($("c1","c2"),$("1",large),$(large,"2"));
+		
+		assertEquals(expected, parsed);
+		
+	}
+	
+	@Test @SneakyThrows
+	public void honours_encodings() {
+		
+		Table created = table().with($("c1","c2"), $("\u00e0\u00e8","\u00ec\u00f2"),$("\u00f9\u20ac","\u00df"));
+
+		for (String encoding : $("UTF-8","UTF-16","ISO-8859-15")) {
+			
+			Csv csv = csv().encoding(encoding);
+			
+			InputStream stream = csv.convert(created);
+			
+			Table parsed = table().from(csv().encoding(encoding)).in(stream).materialise();
+			
+			assertEquals(created, parsed);
+		}
+		
+	}
+	
+	
+	
 	//   serialisation    //////////////////////////////////////////////////////////////////////////
 	
 	//-- assume tables can be correctly created in memory or parsed from CSV.
@@ -210,6 +546,64 @@ public class CsvTests {
 	//note: streamed tables need to be materialised before we can compare them, 
 	//as they have different underlying impls until we do that.
 	
+	@Test @SneakyThrows
+	public void decodes_like_the_jdk() {
+		
+		Random random = new Random(7);
+		
+		List<byte[]> values = new ArrayList<>();
+		
+		values.add("plain".getBytes("UTF-8"));
+		values.add("\u00e0\u20ac\ud83d\ude00 mixed".getBytes("UTF-8"));
+		
+		//arbitrary bytes, including malformed and overlong sequences and encoded surrogates
+		for (int i=0; i<2000; i++) {
+			
+			byte[] value = new byte[1+random.nextInt(12)];
+			
+			for (int b=0; b<value.length; b++) {
+				
+				value[b] = (byte) (random.nextBoolean() ? 0x80+random.nextInt(128) : 0x20+random.nextInt(95));
+				
+				if (value[b]==',' || value[b]=='"')
+					value[b]='x';
+			}
+			
+			values.add(value);
+		}
+		
+		values.add(new byte[]{(byte)0xed,(byte)0xa0,(byte)0x80});
+		values.add(new byte[]{(byte)0xc0,(byte)0xaf});
+		values.add(new byte[]{(byte)0xf4,(byte)0x90,(byte)0x80,(byte)0x80});
+		
+		for (String encoding : $("UTF-8","US-ASCII","ISO-8859-1")) {
+			
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			
+			for (byte[] value : values) {
+				data.write(value);
+				data.write(',');
+				data.write('"');
+				data.write(value);
+				data.write('"');
+				data.write('\n');
+			}
+			
+			Table parsed = csv().encoding(encoding).hasHeader(false).with("c1","c2").parse().in(new ByteArrayInputStream(data.toByteArray()));
+			
+			int i=0;
+			for (Row row : parsed) {
+				
+				String expected = new String(values.get(i++),encoding);
+				
+				assertEquals(expected, row.get("c1"));
+				assertEquals(expected, row.get("c2"));
+			}
+			
+			assertEquals(values.size(), i);
+		}
+	}
+	
 	@Test
 	public void table_compensates_for_missing_columns() {
 		
@@ -265,6 +659,52 @@ public class CsvTests {
 	}
 
 
+	@Test @SneakyThrows
+	public void quotes_only_when_needed() {
+		
+		Table created = table().with($("c1","c2"), $("plain","with,delimiter"),$("with \"quotes\"","multi\r\nline"),$("","\ud83d\ude00 \u00e0"));
+		
+		String expected = "c1,c2\nplain,\"with,delimiter\"\n\"with \"\"quotes\"\"\",\"multi\r\nline\"\n,\ud83d\ude00 \u00e0\n";
+		
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		
+		csv().encoding("UTF-8").serialise(created).to(stream);
+		
+		assertEquals(expected, new String(stream.toByteArray(),"UTF-8"));
+		
+		for (String encoding : $("UTF-8","US-ASCII","ISO-8859-1","UTF-16")) {
+			
+			Table parsed = table().from(csv().encoding(encoding)).in(csv().encoding(encoding).convert(created)).materialise();
+			
+			//unmappable chars are replaced
+			Table expectedParsed = table().cols("c1","c2").rows(created.stream().map(r->encodable(r,encoding)).collect(toList()));
+			
+			assertEquals(expectedParsed, parsed);
+		}
+	}
+	
+	@Test
+	public void serialise_in_parallel() {
+		
+		List<Row> rows = new ArrayList<>();
+		
+		for (int i=0; i<10000; i++)
+			rows.add(row($("c1","c2"),$(""+i,i%3==0 ? "multi\nline \"value\", "+i : "")));
+		
+		Table created = table().cols("c1","c2").rows(rows);
+		
+		for (Csv csv : asList(csv(), csv().hasHeader(false).delimiter(';'), csv().encoding("UTF-16"))) {
+		
+			ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+			ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+			
+			csv.copy().serialise(created).to(sequential);
+			csv.copy().parallelism(4).batch(100).serialise(created).to(parallel);
+			
+			assertArrayEquals(sequential.toByteArray(), parallel.toByteArray());
+		}
+	}
+	
 	@Test
 	public void offers_serialisation_options() {
 		
@@ -306,9 +746,172 @@ public class CsvTests {
 	
 	
 	
+	@Test @SneakyThrows
+	public void parse_mapped_file() {
+
+		Path path = createTempFile("test", "tmp"); 
+				
+		Table created = table().with($("c1","c2"), $("1","2,2"),$("3","4\n4"));
+		
+		csv().serialise(created).at(path);
+		
+		Table parsed = csv().mapped(true).parse().at(path).materialise();
+		
+		assertEquals(created,parsed);
+		
+		delete(path);
+	}
+	
+	@Test @SneakyThrows
+	public void parse_file_in_parallel() {
+
+		Path path = createTempFile("test", "tmp"); 
+		
+		List<Row> rows = new ArrayList<>();
+		
+		for (int i=0; i<50000; i++)
+			rows.add(row($("c1","c2","c3"),$(""+i,"multi\nline \"value\", "+i,"\r\n")));
+		
+		Table created = table().cols("c1","c2","c3").rows(rows);
+		
+		csv().encoding("UTF-8").serialise(created).at(path);
+		
+		Table parsed = csv().encoding("UTF-8").parallelism(4).parse().at(path).materialise();
+		
+		assertEquals(created,parsed);
+		
+		Table projected = csv().encoding("UTF-8").parallelism(4).project("c3","c1").parse().at(path).materialise();
+		
+		assertEquals(table().cols("c1","c3").rows(created.stream().map(r->r.extract("c1","c3")).collect(toList())),projected);
+		
+		Table unordered = csv().encoding("UTF-8").parallelism(4).ordered(false).mapped(true).parse().at(path);
+		
+		assertEquals(new HashSet<>(created.stream().collect(toList())),new HashSet<>(unordered.stream().collect(toList())));
+		
+		delete(path);
+	}
+	
+	@Test @SneakyThrows
+	public void compressed_files() {
+
+		Path gz = createTempFile("test", ".csv.gz");
+		Path plain = createTempFile("test", "tmp");
+		
+		try {
+		
+			List<Row> rows = new ArrayList<>();
+			
+			for (int i=0; i<20000; i++)
+				rows.add(row($("c1","c2"),$(""+i,"some \"value\", "+i)));
+			
+			Table created = table().cols("c1","c2").rows(rows);
+			
+			//by extension
+			csv().serialise(created).at(gz);
+			
+			assertEquals(Compression.GZIP, Compression.sniff(gz));
+			assertEquals(created, csv().parse().at(gz).materialise());
+			
+			//by magic bytes
+			csv().compression(Compression.GZIP).serialise(created).at(plain);
+			
+			assertEquals(Compression.GZIP, Compression.sniff(plain));
+			assertEquals(created, csv().parse().at(plain).materialise());
+			assertEquals(created, csv().parse().in(newInputStream(plain)).materialise());
+			
+			//explicitly, as deflate has no reliable magic bytes
+			csv().compression(Compression.DEFLATE).serialise(created).at(plain);
+			
+			assertEquals(Compression.NONE, Compression.sniff(plain));
+			assertEquals(created, csv().compression(Compression.DEFLATE).parse().in(newInputStream(plain)).materialise());
+			assertEquals(created, csv().compression(Compression.DEFLATE).parse().at(plain).materialise());
+			
+			//text that looks like a zlib header
+			Table zlike = table().cols("x^2","c2").rows(row($("x^2","c2"),$("1","2")));
+			
+			csv().serialise(zlike).at(plain);
+			
+			assertEquals(Compression.NONE, Compression.sniff(plain));
+			assertEquals(zlike, csv().parse().at(plain).materialise());
+			assertEquals(zlike, csv().parse().in(newInputStream(plain)).materialise());
+			
+			csv().compression(Compression.NONE).serialise(created).at(gz);
+			
+			assertEquals(Compression.NONE, Compression.sniff(gz));
+			assertEquals(created, csv().compression(Compression.NONE).parse().at(gz).materialise());
+			
+			//streams
+			ByteArrayOutputStream stream = new ByteArrayOutputStream();
+			
+			csv().compression(Compression.GZIP).serialise(created).to(stream);
+			
+			assertEquals(created, csv().parse().in(new ByteArrayInputStream(stream.toByteArray())).materialise());
+		}
+		finally {
+			delete(gz);
+			delete(plain);
+		}
+	}
+	
+	@Test @SneakyThrows
+	public void compress_files_in_parallel() {
+
+		Path gz = createTempFile("test", ".csv.gz");
+		
+		try {
+		
+			List<Row> rows = new ArrayList<>();
+			
+			for (int i=0; i<50000; i++)
+				rows.add(row($("c1","c2"),$(""+i,"multi\nline \"value\", "+i)));
+			
+			Table created = table().cols("c1","c2").rows(rows);
+			
+			csv().parallelism(4).serialise(created).at(gz);
+			
+			//readable as a standard gzip stream
+			ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+			
+			try (InputStream in = new GZIPInputStream(newInputStream(gz))) {
+				
+				byte[] buffer = new byte[8192];
+				
+				for (int read = in.read(buffer); read>=0; read = in.read(buffer))
+					inflated.write(buffer,0,read);
+			}
+			
+			ByteArrayOutputStream plain = new ByteArrayOutputStream();
+			
+			csv().serialise(created).to(plain);
+			
+			assertArrayEquals(plain.toByteArray(), inflated.toByteArray());
+			
+			assertEquals(created, csv().parse().at(gz).materialise());
+		}
+		finally {
+			delete(gz);
+		}
+	}
+	
+	
+	
+	
+	
 	////   helpers    /////////////////////////////////////////////////////////////////
 	
 	
+	@SneakyThrows
+	Row encodable(Row row, String encoding) {
+		
+		Row encodable = new Row(row);
+		
+		for (String col : row.columns())
+			encodable.set(col,new String(row.get(col).getBytes(encoding),encoding));
+		
+		return encodable;
+	}
+	
+	
 	InputStream some(Csv csv, String[] ... rows) {
 		
 		StringBuilder $ = new StringBuilder();
@@ -1,17 +1,30 @@
 package org.acme;
 
 import static java.util.Arrays.*;
+import static java.util.Collections.*;
+import static java.util.stream.Collectors.*;
 import static org.junit.Assert.*;
 import static smallgears.api.tabular.dsl.Tables.*;
 import static smallgears.api.tabular.operations.TableOperations.*;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.junit.Test;
 
 import smallgears.api.tabular.Row;
 import smallgears.api.tabular.Table;
+import smallgears.api.tabular.impl.ColumnarTable;
+import smallgears.api.tabular.impl.SpillingTable;
+import smallgears.api.tabular.operations.RowIndex;
+import smallgears.api.tabular.operations.TableOperations.Key;
+import smallgears.api.tabular.utils.MaterialisedTable;
 
 public class OperationTest {
 
@@ -44,6 +57,334 @@ public class OperationTest {
 		
 	}
 	
+	@Test
+	public void composite_keys() {
+		
+		Row r1 = row($("c1","c2"),$("ab","c"));
+		Row r2 = row($("c1","c2"),$("a","bc"));
+		Row r3 = row($("c1","c2"),$("",""));
+		
+		Table t = table().cols($("c1","c2")).rows(r1,r2,r3);
+		
+		Map<Key,List<Row>> group = group(t).byKeys("c1","c2");
+		
+		assertEquals(2, group.size());
+		assertEquals(asList(r1), group.get(key("ab","c")));
+		assertEquals(asList(r2), group.get(key("a","bc")));
+		
+		assertEquals(r2, index(t).usingKeys("c1","c2").get(key("a","bc")));
+		assertEquals("c", index(t).over("c2").usingKeys("c1","c2").get(key("ab","c")));
+		assertTrue(indexist(t).usingKeys("c1","c2").containsKey(key("ab","c")));
+		assertFalse(indexist(t).usingKeys("c1","c2").containsKey(key("abc","")));
+		
+		//concatenated values, as before keys
+		assertEquals(asList(r1,r2), group(t).by("c1","c2").get("abc"));
+		assertEquals(1, group(t).by("c1","c2").size());
+		assertEquals(r2, index(t).using("c1","c2").get("abc"));
+		assertEquals("bc", index(t).over("c2").using("c1","c2").get("abc"));
+		assertTrue(indexist(t).using("c1","c2").containsKey("abc"));
+		assertFalse(indexist(t).using("c1","c2").containsKey(""));
+		
+		//values that collide on String.hashCode()
+		assertEquals("Aa".hashCode(), "BB".hashCode());
+		assertNotEquals(key("Aa").hash(), key("BB").hash());
+		assertNotEquals(key("Aa","BB").hash()>>>32, key("BB","Aa").hash()>>>32);
+		
+		Table t1 = table($("c1","c2","c3"), $("ab","c","v1"),$("a","bc","v2"),$("x","y","v3"));
+		Table t2 = table($("c1","c2","c4"), $("a","bc","w2"),$("ab","c","w1"));
+		
+		List<Row> unmatched = new ArrayList<>();
+		
+		join(t1).with(t2).fallbackWith(unmatched::add).basedOn(match("c1"),match("c2"));
+		
+		List<Row> joined = t1.stream().collect(toList());
+		
+		assertEquals("w1", joined.get(0).get("c4"));
+		assertEquals("w2", joined.get(1).get("c4"));
+		assertEquals(asList(joined.get(2)), unmatched);
+	}
+	
+	@Test
+	public void many_to_many_joins() {
+		
+		Row r1 = row($("c1","c2"),$("k1","v1"));
+		Row r2 = row($("c1","c2"),$("k2","v2"));
+		Row r3 = row($("c1","c2"),$("k1","v3"));
+		Row r4 = row($("c1","c2"),$("","v4"));
+		
+		Table t = table().cols($("c1","c2")).rows(r1,r2,r3,r4);
+		
+		RowIndex index = indexall(t).using("c1");
+		
+		assertEquals(2, index.size());
+		assertEquals(asList(r1,r3), index.get(key("k1")));
+		assertEquals(1, index.count(key("k2")));
+		assertFalse(index.contains(key("")));
+		
+		//one-to-many
+		Table source = table($("c1","c3"), $("k1","w1"),$("k2","w2"),$("k3","w3"));
+		
+		List<Row> pairs = new ArrayList<>();
+		
+		join(source).with(t).using((s,m)->pairs.add(new Row(s).merge(m))).basedOn(match("c1"));
+		
+		assertEquals(asList(row($("c1","c2","c3"),$("k1","v1","w1")),row($("c1","c2","c3"),$("k1","v3","w1")),row($("c1","c2","c3"),$("k2","v2","w2"))), pairs);
+		
+		//many-to-many
+		pairs.clear();
+		
+		join(t).with(t).using((s,m)->pairs.add(m)).basedOn(match("c1"));
+		
+		assertEquals(asList(r1,r3,r2,r1,r3), pairs);
+		
+		//latest duplicate prevails on default merge
+		Table merged = table($("c1"), $("k1"));
+		
+		join(merged).with(t).basedOn(match("c1"));
+		
+		assertEquals("v3", merged.stream().findFirst().get().get("c2"));
+	}
+	
+	@Test
+	public void parallel_joins() {
+		
+		List<Row> targets = new ArrayList<>();
+		
+		for (int i=0; i<1000; i++)
+			targets.add(row($("c1","c2","c3"),$("k"+i%300,"j"+i%7,"v"+i)));
+		
+		Table target = table().cols($("c1","c2","c3")).rows(targets.toArray(new Row[0]));
+		
+		List<Row> sources = new ArrayList<>();
+		
+		for (int i=0; i<2000; i++)
+			sources.add(row($("c1","c2"),$("k"+i%400,"j"+i%5)));
+		
+		Table source = table().cols($("c1","c2")).rows(sources.toArray(new Row[0]));
+		
+		Table sequential = source.with(Row::new).materialise();
+		Table parallel = source.with(Row::new).materialise();
+		
+		join(sequential).with(target).basedOn(match("c1"),match("c2"));
+		join(parallel).with(target).parallelism(4).basedOn(match("c1"),match("c2"));
+		
+		assertEquals(sequential, parallel);
+		
+		//all matches of a row, in table order, once
+		Map<Row,List<Row>> pairs = synchronizedMap(new IdentityHashMap<>());
+		Set<Row> unmatched = synchronizedSet(newSetFromMap(new IdentityHashMap<>()));
+		
+		join(source).with(target).using((s,t)->pairs.computeIfAbsent(s,$->new ArrayList<>()).add(t)).fallbackWith(unmatched::add).parallelism(3).basedOn(match("c1"),match("c2"));
+		
+		RowIndex index = indexall(target).using("c1","c2");
+		
+		for (Row row : source)
+			if (index.contains(key(row.get("c1"),row.get("c2"))))
+				assertEquals(index.get(key(row.get("c1"),row.get("c2"))), pairs.get(row));
+			else
+				assertTrue(unmatched.contains(row));
+		
+		assertEquals(sources.size(), pairs.size()+unmatched.size());
+		
+		//over a registered index
+		target.materialise().index("c1","c2");
+		
+		Table registered = source.with(Row::new).materialise();
+		
+		join(registered).with(target).parallelism(2).basedOn(match("c1"),match("c2"));
+		
+		assertEquals(sequential, registered);
+		
+		//into views, on the calling thread
+		MaterialisedTable columnar = source.materialise(ColumnarTable::new);
+		
+		join(columnar).with(target).parallelism(4).basedOn(match("c1"),match("c2"));
+		
+		assertEquals(sequential.stream().collect(toList()), columnar.stream().collect(toList()));
+		
+		try {
+			join(source).with(target).parallelism(0);
+			fail();
+		}
+		catch(IllegalArgumentException e) {}
+	}
+	
+	@Test
+	public void budgeted_joins() {
+		
+		List<Row> targets = new ArrayList<>();
+		
+		for (int i=0; i<3000; i++)
+			targets.add(row($("c1","c2","c3"),$("k"+i%700,i%50==0 ? "" : "j"+i%3,"v"+i)));
+		
+		Table target = table().cols($("c1","c2","c3")).rows(targets.toArray(new Row[0]));
+		
+		List<Row> sources = new ArrayList<>();
+		
+		for (int i=0; i<2000; i++)
+			sources.add(row($("id","c1","c2"),$("s"+i,"k"+i%900,"j"+i%4)));
+		
+		Table source = table().cols($("id","c1","c2")).rows(sources.toArray(new Row[0]));
+		
+		//materialised sources are changed in place
+		Table sequential = source.with(Row::new).materialise();
+		Table budgeted = source.with(Row::new).materialise();
+		
+		join(sequential).with(target).basedOn(match("c1"),match("c2"));
+		join(budgeted).with(target).budget(50_000).basedOn(match("c1"),match("c2"));
+		
+		assertEquals(sequential, budgeted);
+		
+		//down to single keys, below the cost of a row
+		Table unbudgeted = source.with(Row::new).materialise();
+		
+		join(unbudgeted).with(target).budget(0).basedOn(match("c1"),match("c2"));
+		
+		assertEquals(sequential, unbudgeted);
+		
+		//views too, over several levels of partitions
+		MaterialisedTable columnar = source.materialise(ColumnarTable::new);
+		
+		join(columnar).with(target).budget(5_000).basedOn(match("c1"),match("c2"));
+		
+		assertEquals(sequential.stream().collect(toList()), columnar.stream().collect(toList()));
+		
+		//streamed sources are partitioned too, and matches of each row still follow table order
+		Map<String,List<String>> expected = new HashMap<>();
+		Map<String,List<String>> pairs = new HashMap<>();
+		Set<String> unmatched = new HashSet<>();
+		
+		join(source).with(target).using((s,t)->expected.computeIfAbsent(s.get("id"),$->new ArrayList<>()).add(t.get("c3"))).basedOn(match("c1"),match("c2"));
+		join(source.with(Row::new)).with(target).using((s,t)->pairs.computeIfAbsent(s.get("id"),$->new ArrayList<>()).add(t.get("c3")))
+									   .fallbackWith(s->unmatched.add(s.get("id")))
+									   .budget(50_000)
+									   .basedOn(match("c1"),match("c2"));
+		
+		assertEquals(expected, pairs);
+		assertEquals(sources.size(), pairs.size()+unmatched.size());
+		
+		//spilling sources are partitioned on disk, as their rows are copies
+		Map<String,List<String>> spilled = new HashMap<>();
+		
+		try (SpillingTable spilling = (SpillingTable) SpillingTable.budget(0).apply(source)) {
+			
+			join(spilling).with(target).using((s,t)->spilled.computeIfAbsent(s.get("id"),$->new ArrayList<>()).add(t.get("c3"))).budget(50_000).basedOn(match("c1"),match("c2"));
+		}
+		
+		assertEquals(expected, spilled);
+		
+		//not merged into rows read back from disk
+		try (SpillingTable spilling = (SpillingTable) SpillingTable.budget(0).apply(source)) {
+			
+			join(spilling).with(target).basedOn(match("c1"),match("c2"));
+			fail();
+		}
+		catch(IllegalArgumentException e) {}
+		
+		try {
+			join(source.with(Row::new)).with(target).budget(50_000).basedOn(match("c1"),match("c2"));
+			fail();
+		}
+		catch(IllegalArgumentException e) {}
+		
+		//keys that cannot be partitioned further
+		Table small = table($("c1","c2"), $("k1","v1"),$("k1","v2"),$("k2","v3"));
+		Table smallsource = table($("c1"), $("k1"),$("k3"));
+		
+		join(smallsource).with(small).budget(0).basedOn(match("c1"));
+		
+		assertEquals(table($("c1","c2"), $("k1","v2"),$("k3")), smallsource);
+		
+		try {
+			join(source).with(target).budget(-1);
+			fail();
+		}
+		catch(IllegalArgumentException e) {}
+	}
+	
+	@Test
+	public void registered_indexes() {
+		
+		Row r1 = row($("c1","c2"),$("k1","v1"));
+		Row r2 = row($("c1","c2"),$("k2","v2"));
+		
+		MaterialisedTable t = table().cols($("c1","c2")).rows(r1,r2).materialise();
+		
+		RowIndex index = t.index("c1");
+		
+		assertSame(index, t.index("c1"));
+		assertSame(index, indexall(t).using("c1"));
+		assertEquals(r2, index(t).usingKeys("c1").get(key("k2")));
+		assertTrue(indexist(t).usingKeys("c1").containsKey(key("k1")));
+		
+		//follows additions and removals, duplicates included
+		Row r3 = row($("c1","c2"),$("k1","v3"));
+		Row r4 = row($("c1","c2"),$("k1","v1"));
+		
+		t.add(r3,r4);
+		
+		assertEquals(asList(r1,r3,r4), index.get(key("k1")));
+		
+		t.removeIf(r->r==r1 || r==r2);
+		
+		assertSame(index, indexall(t).using("c1"));
+		assertEquals(asList(r3,r4), index.get(key("k1")));
+		assertFalse(index.contains(key("k2")));
+		assertEquals(r4, index(t).usingKeys("c1").get(key("k1")));
+		
+		//lookups are copies, as when there is no index
+		Map<Key,Row> lookup = index(t).usingKeys("c1");
+		
+		lookup.clear();
+		
+		assertTrue(index.contains(key("k1")));
+		
+		//stale after removals through iterators
+		Iterator<Row> it = t.iterator();
+		
+		it.next();
+		it.remove();
+		
+		assertNotSame(index, indexall(t).using("c1"));
+		assertEquals(asList(r4), indexall(t).using("c1").get(key("k1")));
+		
+		//joins reuse it
+		Table source = table($("c1"), $("k1"));
+		
+		join(source).with(t).basedOn(match("c1"));
+		
+		assertEquals("v1", source.stream().findFirst().get().get("c2"));
+		
+		//and merges into indexed sources make their indexes stale
+		MaterialisedTable merged = table($("c1"), $("k1")).materialise();
+		
+		RowIndex mindex = merged.index("c2");
+		
+		assertFalse(mindex.contains(key("v1")));
+		
+		join(merged).with(t).basedOn(match("c1"));
+		
+		assertTrue(indexall(merged).using("c2").contains(key("v1")));
+		
+		//rebuilt after removals from columnar tables
+		MaterialisedTable c = table($("c1","c2"), $("k1","v1"),$("k2","v2"),$("k1","v3")).materialise(ColumnarTable::new);
+		
+		RowIndex cindex = c.index("c1");
+		
+		c.add(row($("c1","c2"),$("k2","v4")));
+		
+		assertSame(cindex, indexall(c).using("c1"));
+		assertEquals(2, cindex.count(key("k2")));
+		
+		c.removeIf(r->r.get("c2").equals("v1"));
+		
+		RowIndex rebuilt = indexall(c).using("c1");
+		
+		assertNotSame(cindex, rebuilt);
+		assertEquals(asList("v3"), rebuilt.get(key("k1")).stream().map(r->r.get("c2")).collect(toList()));
+		assertEquals(asList("v2","v4"), rebuilt.get(key("k2")).stream().map(r->r.get("c2")).collect(toList()));
+	}
+	
 	@Test
 	public void copy() {
 		
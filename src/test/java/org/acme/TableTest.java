@@ -3,9 +3,32 @@ package org.acme;
 import static org.junit.Assert.*;
 import static smallgears.api.tabular.dsl.Tables.*;
 
+import static java.util.Arrays.*;
+import static java.util.stream.Collectors.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
 import org.junit.Test;
 
+import lombok.SneakyThrows;
+import smallgears.api.tabular.Column;
+import smallgears.api.tabular.Row;
 import smallgears.api.tabular.Table;
+import smallgears.api.tabular.impl.ColumnarTable;
+import smallgears.api.tabular.impl.OffHeapTable;
+import smallgears.api.tabular.impl.Pipeline;
+import smallgears.api.tabular.impl.SimpleTable;
+import smallgears.api.tabular.impl.SpillingTable;
+import smallgears.api.tabular.utils.MaterialisedTable;
 
 public class TableTest {
 
@@ -38,4 +61,261 @@ public class TableTest {
 		assertTrue(t.stream().allMatch($->!$.has("c2")));
 		
 	}
+	
+	@Test
+	public void columnar_tables() {
+		
+		Table t = table($("c1","c2"), $("v1","v2"),$("v1","v3"),$("v4","v2"));
+		
+		MaterialisedTable c = t.materialise(ColumnarTable::new);
+		
+		assertTrue(c.materialised());
+		assertEquals(t.columns(), c.columns());
+		assertEquals(3, c.size());
+		
+		List<Row> rows = c.stream().collect(toList());
+		
+		assertEquals(t.stream().collect(toList()), rows);
+		
+		//still simple tables by default
+		SimpleTable simple = c.materialise();
+		
+		assertEquals(rows, simple.stream().collect(toList()));
+		
+		//views write through
+		rows.get(0).set("c2","v5").set("c3","v6");
+		
+		Row first = c.iterator().next();
+		
+		assertEquals("v5", first.get("c2"));
+		assertEquals("v6", first.get("c3"));
+		assertFalse(c.stream().skip(1).anyMatch($->$.has("c3")));
+		
+		c.add(new Row().set("c1","v1"));
+		
+		assertEquals(4, c.size());
+		
+		c.remove(new Row().set("c1","v1").set("c2","v3"), new Row().set("c1","v1"));
+		
+		assertEquals(2, c.size());
+		assertEquals(asList("v1","v4"), c.stream().map($->$.get("c1")).collect(toList()));
+	}
+	
+	@Test
+	public void columnar_tables_encode_repeated_values() {
+		
+		MaterialisedTable c = new ColumnarTable(table($("code","id")));
+		
+		for (int i=0; i<5000; i++)
+			c.add(new Row().set("code","c"+(i%10)).set("id",""+i));
+		
+		assertTrue(((ColumnarTable) c).encoded("code"));
+		assertFalse(((ColumnarTable) c).encoded("id"));
+		
+		int i=0;
+		for (Row row : c) {
+			assertEquals("c"+(i%10), row.get("code"));
+			assertEquals(""+i, row.get("id"));
+			i++;
+		}
+	}
+	
+	@Test
+	public void off_heap_tables() {
+		
+		Table t = table($("c1","c2"), $("v1","v2"),$("v1","v3"),$("v4","\u00e8"));
+		
+		OffHeapTable closed;
+		
+		try (OffHeapTable o = new OffHeapTable(t)) {
+		
+			assertTrue(o.materialised());
+			assertEquals(3, o.size());
+			assertEquals(t.stream().collect(toList()), o.stream().collect(toList()));
+			
+			//rows write through
+			o.iterator().next().set("c2","v5").set("c3","v6");
+			
+			Row first = o.iterator().next();
+			
+			assertEquals("v5", first.get("c2"));
+			assertEquals("v6", first.get("c3"));
+			
+			//merges and iterators write through too
+			o.stream().skip(2).findFirst().get().merge(new Row().set("c2","v7").set("c3","v8"));
+			
+			assertEquals(new Row().set("c1","v4").set("c2","v7").set("c3","v8"), o.stream().skip(2).findFirst().get());
+			
+			Iterator<String> values = o.stream().skip(2).findFirst().get().iterator();
+			
+			values.next();
+			values.remove();
+			
+			assertEquals(2, o.stream().skip(2).findFirst().get().size());
+			
+			o.remove(new Row().set("c1","v1").set("c2","v3"));
+			
+			assertEquals(2, o.size());
+			assertEquals(asList("v1","v4"), o.stream().map($->$.get("c1")).collect(toList()));
+			
+			for (int i=0; i<100_000; i++)
+				o.add(new Row().set("c1",""+i));
+			
+			assertEquals(100_002, o.size());
+			assertEquals("99999", o.stream().skip(100_001).findFirst().get().get("c1"));
+			
+			closed = o;
+		}
+		
+		try {
+			closed.iterator();
+			fail();
+		}
+		catch(IllegalStateException expected) {}
+	}
+	
+	@Test
+	public void spilling_tables() {
+		
+		MaterialisedTable t = table($("c1","c2")).materialise();
+		
+		for (int i=0; i<10_000; i++)
+			t.add(new Row().set("c1",""+i).set("c2",i%2==0?"even":"\u00e8"));
+		
+		Set<Path> files = spills();
+		
+		List<Iterator<Row>> abandoned = new ArrayList<>();
+		
+		try (SpillingTable s = (SpillingTable) t.materialise(SpillingTable.budget(100_000))) {
+		
+			assertTrue(s.spilled()>0);
+			assertTrue(s.spilled()<s.size());
+			assertEquals(10_000, s.size());
+			
+			//re-iterable
+			assertEquals(t.stream().collect(toList()), s.stream().collect(toList()));
+			assertEquals(t.stream().collect(toList()), s.stream().collect(toList()));
+			
+			s.add(new Row().set("c3","extra"));
+			s.remove(new Row().set("c1","0").set("c2","even"), new Row().set("c1","9999").set("c2","\u00e8"));
+			
+			assertEquals(9_999, s.size());
+			assertEquals("1", s.iterator().next().get("c1"));
+			assertEquals("extra", s.stream().reduce((a,b)->b).get().get("c3"));
+			
+			//rows on disk are read-only copies
+			try {
+				s.stream().reduce((a,b)->b).get().set("c3","changed");
+				fail();
+			}
+			catch(UnsupportedOperationException expected) {}
+			
+			//iterations hold no file open, so they can be abandoned
+			for (int i=0; i<20; i++) {
+				
+				Iterator<Row> it = s.iterator();
+				
+				for (int j=0; j<1_000; j++)
+					it.next();
+				
+				abandoned.add(it);
+			}
+			
+			assertEquals(files.size()+1, spills().size());
+		}
+		
+		//the file goes with the table
+		assertEquals(files, spills());
+		
+		try {
+			abandoned.get(0).forEachRemaining(r->{});
+			fail();
+		}
+		catch(IllegalStateException expected) {}
+	}
+	
+	@Test
+	public void bulk_removal() {
+		
+		List<Function<Table,MaterialisedTable>> forms = asList(SimpleTable::new, ColumnarTable::new, OffHeapTable::new, SpillingTable.budget(200));
+		
+		for (Function<Table,MaterialisedTable> form : forms) {
+		
+			MaterialisedTable t = table($("c1"), $("v1"),$("v2"),$("v1"),$("v3"),$("v1")).materialise(form);
+			
+			//as many as given, first ones first
+			t.remove(new Row().set("c1","v1"), new Row().set("c1","v1"), new Row().set("c1","v4"));
+			
+			assertEquals(asList("v2","v3","v1"), t.stream().map($->$.get("c1")).collect(toList()));
+			
+			t.removeIf($->$.get("c1").compareTo("v3")<0);
+			
+			assertEquals(asList("v3"), t.stream().map($->$.get("c1")).collect(toList()));
+			assertEquals(1, t.size());
+		}
+	}
+	
+	@Test
+	public void parallel_streams() {
+		
+		MaterialisedTable t = table($("c1")).materialise();
+		
+		for (int i=0; i<10_000; i++)
+			t.add(new Row().set("c1",""+i));
+		
+		List<Row> expected = t.stream().collect(toList());
+		
+		List<Function<Table,MaterialisedTable>> forms = asList(SimpleTable::new, ColumnarTable::new, OffHeapTable::new, SpillingTable.budget(100_000));
+		
+		for (Function<Table,MaterialisedTable> form : forms) {
+			
+			MaterialisedTable m = t.materialise(form);
+			
+			assertTrue(m.spliterator().hasCharacteristics(Spliterator.SIZED));
+			assertEquals(10_000, m.spliterator().getExactSizeIfKnown());
+			assertEquals(expected, m.parallelStream().collect(toList()));
+		}
+		
+		//streamed
+		assertEquals(expected, t.copy().parallelStream().collect(toList()));
+	}
+	
+	@Test
+	public void pipelines() {
+		
+		Table t = table($("c1","c2"), $("1","a"),$("2","b"),$("3","c"),$("4","d"));
+		
+		Pipeline p = t.filter($->!$.get("c1").equals("2"))
+					  .map($->$.set("c3",$.get("c1")+$.get("c2")))
+					  .project("c3","c1")
+					  .limit(2);
+		
+		assertEquals(asList("c3","c1"), p.columns().stream().map(Column::name).collect(toList()));
+		
+		assertEquals(asList(new Row().set("c1","1").set("c3","1a"), new Row().set("c1","3").set("c3","3c")), p.stream().collect(toList()));
+		
+		//source, then one line per step
+		assertEquals(5, p.plan().split("\\R").length);
+		
+		//columns are collected independently
+		Pipeline filtered = t.filter($->true);
+		Pipeline mapped = filtered.with(Row::new);
+		
+		mapped.columns().add(col("c5"));
+		filtered.columns().add(col("c6"));
+		
+		assertEquals(2, t.columns().size());
+		assertEquals(3, filtered.columns().size());
+		assertEquals(3, mapped.columns().size());
+	}
+	
+	//spill files in the temporary directory
+	@SneakyThrows
+	private static Set<Path> spills() {
+		
+		try (Stream<Path> files = Files.list(Paths.get(System.getProperty("java.io.tmpdir")))) {
+			
+			return files.filter(f->f.getFileName().toString().endsWith(".spill")).collect(toSet());
+		}
+	}
 }